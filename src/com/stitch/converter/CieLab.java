@@ -0,0 +1,235 @@
+package com.stitch.converter;
+
+/**
+ * Converts sRGB colors to CIELAB (D65) and measures CIEDE2000 color
+ * differences.
+ * <p>
+ * The sRGB transfer curve is read from {@link SrgbTransfer}, so converting a
+ * packed color only costs a matrix product and three cube roots.
+ *
+ * @author Reinvert
+ *
+ */
+final class CieLab {
+	static final int L = 0, A = 1, B = 2;
+
+	/**
+	 * The largest value of the CIEDE2000 lightness weighting function S<sub>L</sub>,
+	 * reached at a mean lightness of 0 or 100.
+	 */
+	static final double MAXIMUM_LIGHTNESS_WEIGHT = 1d + 0.015d * 2500d / Math.sqrt(2520d);
+
+	private static final double MAXIMUM_ROTATION_SINE = Math.sin(Math.toRadians(60d));
+	private static final double COS_30 = Math.cos(Math.toRadians(30d)), SIN_30 = Math.sin(Math.toRadians(30d));
+	private static final double COS_6 = Math.cos(Math.toRadians(6d)), SIN_6 = Math.sin(Math.toRadians(6d));
+	private static final double COS_63 = Math.cos(Math.toRadians(63d)), SIN_63 = Math.sin(Math.toRadians(63d));
+
+	private static final double WHITE_X = 0.95047d, WHITE_Y = 1d, WHITE_Z = 1.08883d;
+	private static final double EPSILON = 216d / 24389d, KAPPA = 24389d / 27d;
+	private static final double POW25_7 = Math.pow(25d, 7d);
+
+	// Room for the Lab values of two colors, so a difference of packed colors allocates nothing.
+	private static final ThreadLocal<double[]> SCRATCH = ThreadLocal.withInitial(() -> new double[6]);
+
+	/**
+	 * Converts the color to CIELAB.
+	 *
+	 * @param rgb - the RGB value. The alpha value is ignored.
+	 * @param lab - the array receiving L*, a* and b*.
+	 */
+	static void toLab(final int rgb, final double[] lab) {
+		toLab(rgb, lab, 0);
+	}
+
+	/**
+	 * Converts the colors to CIELAB.
+	 *
+	 * @param rgb - the RGB values. The alpha values are ignored.
+	 * @return L*, a* and b* of every color, three values per color in the order
+	 *         of the RGB values.
+	 */
+	static double[] toLabs(final int[] rgb) {
+		final double[] labs = new double[rgb.length * 3];
+		for (int index = 0; index < rgb.length; index++) {
+			toLab(rgb[index], labs, index);
+		}
+		return labs;
+	}
+
+	private static void toLab(final int rgb, final double[] labs, final int index) {
+		final double red = SrgbTransfer.decode((rgb >> 16) & 0xFF);
+		final double green = SrgbTransfer.decode((rgb >> 8) & 0xFF);
+		final double blue = SrgbTransfer.decode(rgb & 0xFF);
+		final double x = f((0.4124564d * red + 0.3575761d * green + 0.1804375d * blue) / WHITE_X);
+		final double y = f((0.2126729d * red + 0.7151522d * green + 0.0721750d * blue) / WHITE_Y);
+		final double z = f((0.0193339d * red + 0.1191920d * green + 0.9503041d * blue) / WHITE_Z);
+		labs[index * 3 + L] = 116d * y - 16d;
+		labs[index * 3 + A] = 500d * (x - y);
+		labs[index * 3 + B] = 200d * (y - z);
+	}
+
+	/**
+	 * Calculates the CIEDE2000 difference between two packed colors, in
+	 * thousandths.
+	 *
+	 * @param rgb   - the first color.
+	 * @param other - the second color.
+	 * @return the difference.
+	 */
+	static int difference(final int rgb, final int other) {
+		final double[] labs = SCRATCH.get();
+		toLab(rgb, labs, 0);
+		toLab(other, labs, 1);
+		return difference(labs, 0, labs, 1);
+	}
+
+	/**
+	 * Calculates the CIEDE2000 difference between two colors already converted
+	 * by {@link #toLabs(int[]) toLabs}, in thousandths, as
+	 * {@link #difference(int, int)} does for their packed values.
+	 *
+	 * @param labs       - the Lab values holding the first color.
+	 * @param index      - the index of the first color.
+	 * @param otherLabs  - the Lab values holding the second color.
+	 * @param otherIndex - the index of the second color.
+	 * @return the difference.
+	 */
+	static int difference(final double[] labs, final int index, final double[] otherLabs, final int otherIndex) {
+		final int first = index * 3, second = otherIndex * 3;
+		return (int) Math.round(1000d * deltaE2000(labs[first + L], labs[first + A], labs[first + B],
+				otherLabs[second + L], otherLabs[second + A], otherLabs[second + B]));
+	}
+
+	private static double f(final double value) {
+		return value > EPSILON ? Math.cbrt(value) : (KAPPA * value + 16d) / 116d;
+	}
+
+	/**
+	 * Calculates a lower bound of the squared CIEDE2000 difference without any
+	 * trigonometry, so it is much cheaper than {@link #deltaE2000 deltaE2000}.
+	 * <p>
+	 * The chroma and hue differences together equal the CIE76 distance in the
+	 * a'b' plane. S<sub>H</sub> never exceeds S<sub>C</sub>, which is bounded by
+	 * the mean chroma, and the rotation term R<sub>T</sub> can cancel at most
+	 * R<sub>C</sub> * sin(60 degrees) / 2 of their squares.
+	 *
+	 * @param l1 - L* of the first color.
+	 * @param a1 - a* of the first color.
+	 * @param b1 - b* of the first color.
+	 * @param c1 - C*ab of the first color.
+	 * @param l2 - L* of the second color.
+	 * @param a2 - a* of the second color.
+	 * @param b2 - b* of the second color.
+	 * @param c2 - C*ab of the second color.
+	 * @return the lower bound.
+	 */
+	static double squaredLowerBound(final double l1, final double a1, final double b1, final double c1,
+			final double l2, final double a2, final double b2, final double c2) {
+		final double meanChroma = (c1 + c2) / 2d;
+		final double meanChroma7 = pow7(meanChroma);
+		final double g = 0.5d * (1d - Math.sqrt(meanChroma7 / (meanChroma7 + POW25_7)));
+		final double deltaAPrime = (1d + g) * (a2 - a1), deltaB = b2 - b1;
+		// C' never exceeds (1 + G) * C*ab.
+		final double meanC = (1d + g) * meanChroma;
+		final double meanC7 = pow7(meanC);
+		final double chromaWeight = 1d + 0.045d * meanC;
+		final double share = 1d - Math.sqrt(meanC7 / (meanC7 + POW25_7)) * MAXIMUM_ROTATION_SINE;
+		final double meanL50 = ((l1 + l2) / 2d - 50d) * ((l1 + l2) / 2d - 50d);
+		final double lightness = (l2 - l1) / (1d + 0.015d * meanL50 / Math.sqrt(20d + meanL50));
+		return lightness * lightness
+				+ share * (deltaAPrime * deltaAPrime + deltaB * deltaB) / (chromaWeight * chromaWeight);
+	}
+
+	/**
+	 * Calculates the CIEDE2000 difference between two CIELAB colors, with all
+	 * parametric factors set to 1.
+	 *
+	 * @param l1 - L* of the first color.
+	 * @param a1 - a* of the first color.
+	 * @param b1 - b* of the first color.
+	 * @param l2 - L* of the second color.
+	 * @param a2 - a* of the second color.
+	 * @param b2 - b* of the second color.
+	 * @return the difference.
+	 */
+	static double deltaE2000(final double l1, final double a1, final double b1, final double l2, final double a2,
+			final double b2) {
+		final double meanChroma = (Math.sqrt(a1 * a1 + b1 * b1) + Math.sqrt(a2 * a2 + b2 * b2)) / 2d;
+		final double meanChroma7 = pow7(meanChroma);
+		final double g = 0.5d * (1d - Math.sqrt(meanChroma7 / (meanChroma7 + POW25_7)));
+		final double a1Prime = (1d + g) * a1, a2Prime = (1d + g) * a2;
+		final double c1 = Math.sqrt(a1Prime * a1Prime + b1 * b1), c2 = Math.sqrt(a2Prime * a2Prime + b2 * b2);
+
+		final double deltaL = l2 - l1;
+		final double deltaC = c2 - c1;
+		// Same as 2 * sqrt(C1' * C2') * sin(dh' / 2), without the trigonometry.
+		final double deltaAPrime = a2Prime - a1Prime, deltaB = b2 - b1;
+		final double deltaH = Math.copySign(
+				Math.sqrt(Math.max(0d, deltaAPrime * deltaAPrime + deltaB * deltaB - deltaC * deltaC)),
+				a1Prime * b2 - a2Prime * b1);
+
+		final double meanL = (l1 + l2) / 2d;
+		final double meanC = (c1 + c2) / 2d;
+		/*
+		 * The mean hue, wrap-around rule included, points along the sum of both unit
+		 * hue vectors. A color without chroma has no hue, so the mean is the other
+		 * hue. Only opposite hues need the angles themselves.
+		 */
+		double hueX, hueY;
+		if (c1 * c2 == 0d) {
+			hueX = a1Prime + a2Prime;
+			hueY = b1 + b2;
+		} else {
+			hueX = a1Prime / c1 + a2Prime / c2;
+			hueY = b1 / c1 + b2 / c2;
+		}
+		double hueLength = Math.sqrt(hueX * hueX + hueY * hueY);
+		if (hueLength == 0d) {
+			if (c1 * c2 == 0d) {
+				hueX = 1d;
+			} else {
+				final double meanHue = Math.toRadians((hue(b1, a1Prime) + hue(b2, a2Prime)) / 2d);
+				hueX = Math.cos(meanHue);
+				hueY = Math.sin(meanHue);
+			}
+			hueLength = Math.sqrt(hueX * hueX + hueY * hueY);
+		}
+		final double cos = hueX / hueLength, sin = hueY / hueLength;
+		final double cos2 = 2d * cos * cos - 1d, sin2 = 2d * sin * cos;
+		final double cos3 = cos * cos2 - sin * sin2, sin3 = sin * cos2 + cos * sin2;
+		final double cos4 = 2d * cos2 * cos2 - 1d, sin4 = 2d * sin2 * cos2;
+		final double t = 1d - 0.17d * (cos * COS_30 + sin * SIN_30) + 0.24d * cos2
+				+ 0.32d * (cos3 * COS_6 - sin3 * SIN_6) - 0.20d * (cos4 * COS_63 + sin4 * SIN_63);
+		double meanHue = Math.toDegrees(Math.atan2(hueY, hueX));
+		if (meanHue < 0d) {
+			meanHue += 360d;
+		}
+		final double deltaTheta = 30d * Math.exp(-Math.pow((meanHue - 275d) / 25d, 2d));
+		final double meanC7 = pow7(meanC);
+		final double rotation = -2d * Math.sqrt(meanC7 / (meanC7 + POW25_7))
+				* Math.sin(Math.toRadians(2d * deltaTheta));
+		final double meanL50 = (meanL - 50d) * (meanL - 50d);
+		final double lightness = deltaL / (1d + 0.015d * meanL50 / Math.sqrt(20d + meanL50));
+		final double chroma = deltaC / (1d + 0.045d * meanC);
+		final double hue = deltaH / (1d + 0.015d * meanC * t);
+		return Math.sqrt(Math.max(0d,
+				lightness * lightness + chroma * chroma + hue * hue + rotation * chroma * hue));
+	}
+
+	private static double pow7(final double value) {
+		final double square = value * value;
+		return square * square * square * value;
+	}
+
+	private static double hue(final double b, final double aPrime) {
+		if (b == 0d && aPrime == 0d) {
+			return 0d;
+		}
+		final double hue = Math.toDegrees(Math.atan2(b, aPrime));
+		return hue < 0d ? hue + 360d : hue;
+	}
+
+	private CieLab() {
+		throw new AssertionError("Singleton class should not be accessed by constructor.");
+	}
+}
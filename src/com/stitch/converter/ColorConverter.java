@@ -2,19 +2,23 @@ package com.stitch.converter;
 
 import java.awt.image.BufferedImage;
 import java.util.*;
-import java.util.Map.Entry;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
 import com.stitch.converter.model.*;
 
 class ColorConverter implements Runnable {
+    static final int DEFAULT_TILE_SIZE = 64;
+
     static class Builder {
         private final Collection<StitchColor> colorList;
         private final BufferedImage image;
         private final StitchImage stitchImage;
         private int thread = Runtime.getRuntime().availableProcessors() + 1;
+        private int tileSize = DEFAULT_TILE_SIZE;
         private ProgressListener progressListener = new ProgressListener() {
 			@Override
 			public void onProgress(double progress, String message) {
@@ -27,6 +31,10 @@ class ColorConverter implements Runnable {
         };
         int convertMode = GraphicsEngine.FLOYD;
         boolean isGammaBased = true;
+        ColorMetric colorMetric = ColorMetric.Standard.EUCLIDEAN;
+        private PaletteLookupTable lookupTable;
+        private ThresholdMap thresholdMap;
+        private int thresholdSpread;
 
         Builder(final BufferedImage image, final StitchImage stitchImage, final Collection<StitchColor> colorList) {
             this.image = image;
@@ -51,6 +59,11 @@ class ColorConverter implements Runnable {
             return this;
         }
 
+        Builder setTileSize(final int tileSize) {
+            this.tileSize = tileSize > 0 ? tileSize : DEFAULT_TILE_SIZE;
+            return this;
+        }
+
         Builder setConvertMode(final int convertMode) {
             this.convertMode = convertMode;
             return this;
@@ -61,98 +74,53 @@ class ColorConverter implements Runnable {
             return this;
         }
 
+        Builder setColorMetric(final ColorMetric colorMetric) {
+            this.colorMetric = colorMetric;
+            return this;
+        }
+
         Builder setProgressListener(final ProgressListener progressListener) {
             this.progressListener = progressListener;
             return this;
         }
-    }
 
-    private class Converter implements Runnable {
-        private final int x, y, width, height;
-
-        private Converter(final int x, final int y, final int width, final int height) {
-            this.x = x;
-            this.y = y;
-            this.width = width;
-            this.height = height;
+        Builder setLookupTable(final PaletteLookupTable lookupTable) {
+            this.lookupTable = lookupTable;
+            return this;
         }
 
-        @Override
-        public void run() {
-            final List<StitchColor> alternateList = new ArrayList<>(colorList);
-            for (int x = this.x; x < this.x + width; x++) {
-                for (int y = this.y; y < this.y + height; y++) {
-                    final Pixel pixel = new Pixel(x, y, new StitchColor(image.getRGB(x, y), null));
-                    StitchColor targetColor = pixel.getColor();
-                    StitchColor outputColor = findClosestColor(targetColor, alternateList);
-                    StitchColor alternateColor = findSecondClosestColor(targetColor, alternateList, outputColor);
-                    pixel.setColor(outputColor);
-                    try {
-                        outputQueue.put(new AbstractMap.SimpleEntry<>(pixel, alternateColor));
-                    } catch (final InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        LogPrinter.error(Resources.getString("error_has_occurred"));
-                        LogPrinter.print(e);
-                    }
-                }
-            }
+        /**
+         * Dithers the image by the threshold map before matching it. Null converts
+         * the image as it is.
+         */
+        Builder setThresholdMap(final ThresholdMap thresholdMap, final int thresholdSpread) {
+            this.thresholdMap = thresholdMap;
+            this.thresholdSpread = thresholdSpread;
+            return this;
         }
+    }
 
-        private StitchColor findClosestColor(StitchColor targetColor, List<StitchColor> colorList) {
-            double difference = Double.MAX_VALUE;
-            StitchColor outputColor = null;
-            for (final StitchColor listColor : colorList) {
-                double calculatedDifference = ImageTools.calculateDifference(listColor, targetColor);
-                if (calculatedDifference < difference) {
-                    outputColor = listColor;
-                    difference = calculatedDifference;
-                }
-            }
-            return outputColor;
-        }
-
-        private StitchColor findSecondClosestColor(StitchColor targetColor, List<StitchColor> colorList, StitchColor outputColor) {
-            colorList.remove(outputColor);
-            double alternateDifference = Double.MAX_VALUE;
-            StitchColor alternateColor = null;
-            for (final StitchColor listColor : colorList) {
-                double calculatedDifference = ImageTools.calculateDifference(listColor, targetColor);
-                if (calculatedDifference < alternateDifference) {
-                    alternateColor = listColor;
-                    alternateDifference = calculatedDifference;
-                }
-            }
-            return alternateColor;
+    /**
+     * Converts a range of tiles, numbered row by row. Ranges are split in half
+     * until a single tile is left, so idle workers can steal the other halves.
+     */
+    private final class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to;
+
+        private TileTask(final int from, final int to) {
+            this.from = from;
+            this.to = to;
         }
-    }
 
-    private final class ImageWriter implements Runnable {
         @Override
-        public void run() {
-        	final int imageSize = image.getWidth()*image.getHeight();
-        	int count=0;
-            while (true) {
-                try {
-                    final Entry<Pixel, StitchColor> pixelEntry = outputQueue.take();
-                    if (pixelEntry == poisonPill) {
-                        return;
-                    }
-                    final Pixel pixel = pixelEntry.getKey();
-                    final int x = pixel.getX();
-                    final int y = pixel.getY();
-                    final int color = pixel.getColor().getRGB();
-                    image.setRGB(x, y, color);
-                    stitchImage.add(pixel);
-                    stitchImage.addAlternateColor(pixelEntry.getValue());
-                    double progress = 1.0 - (double) count++ / imageSize;
-                    progressListener.onProgress(progress, Resources.getString("conversion_processing_colors"));
-                    System.out.println(Resources.getString("conversion_processing_colors") + progress);
-                } catch (final InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    LogPrinter.print(e);
-                    LogPrinter.error(Resources.getString("error_has_occurred"));
-                    return;
-                }
+        protected void compute() {
+            if (to - from > 1) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new TileTask(from, middle), new TileTask(middle, to));
+            } else if (to - from == 1) {
+                convertTile(from);
             }
         }
     }
@@ -160,53 +128,140 @@ class ColorConverter implements Runnable {
     protected final Collection<StitchColor> colorList;
     protected final BufferedImage image;
     protected final StitchImage stitchImage;
-    private final int thread;
+    protected final int thread;
+    private final int tileSize;
     protected final ProgressListener progressListener;
-    private final BlockingQueue<Entry<Pixel, StitchColor>> outputQueue = new ArrayBlockingQueue<>(16);
-    private static final Entry<Pixel, StitchColor> poisonPill = new AbstractMap.SimpleEntry<>(new Pixel(0, 0, new StitchColor(0, 0, 0, "poison")),
-            new StitchColor(0, 0, 0, "poison"));
+    protected final PaletteSearch paletteSearch;
+    private final PaletteLookupTable lookupTable;
+    private final ThresholdMap thresholdMap;
+    private final int thresholdSpread;
+    private int[] pixels;
+    private ColorHistogram histogram;
+    private long[] uniqueColorMatches;
+    // The closest and second closest palette index of every pixel, row by row.
+    private int[] closest, alternate;
+    private final AtomicInteger convertedCount = new AtomicInteger();
 
     protected ColorConverter(final Builder builder) {
         this.image = builder.image;
         this.stitchImage = builder.stitchImage;
         this.colorList = builder.colorList;
         this.thread = builder.thread;
+        this.tileSize = builder.tileSize;
         this.progressListener = builder.progressListener;
+        this.paletteSearch = PaletteSearch.create(new ArrayList<>(colorList), builder.colorMetric);
+        this.lookupTable = builder.lookupTable;
+        this.thresholdMap = builder.thresholdMap;
+        this.thresholdSpread = builder.thresholdSpread;
     }
 
     @Override
     public void run() {
-        ExecutorService executorService = Executors.newFixedThreadPool(thread);
+        final ForkJoinPool pool = new ForkJoinPool(thread);
         try {
-            int width = image.getWidth();
-            int height = image.getHeight();
-            int dividedWidth = width / thread;
-
-            for (int i = 0; i < thread; i++) {
-                int threadWidth = dividedWidth * i;
-                int actualWidth = (i == thread - 1) ? width - threadWidth : dividedWidth;
-                executorService.execute(new Converter(threadWidth, 0, actualWidth, height));
-            }
+            // Parallel streams started inside the pool run on its workers too.
+            pool.invoke(ForkJoinTask.adapt(() -> {
+                pixels = ImageTools.getRGB(image);
+                if (thresholdMap != null) {
+                    pixels = thresholdMap.apply(pixels, image.getWidth(), thresholdSpread);
+                }
+                closest = new int[pixels.length];
+                alternate = new int[pixels.length];
+                if (lookupTable == null) {
+                    matchUniqueColors();
+                }
+                final int tilesAcross = (image.getWidth() + tileSize - 1) / tileSize;
+                final int tilesDown = (image.getHeight() + tileSize - 1) / tileSize;
+                new TileTask(0, tilesAcross * tilesDown).invoke();
+                mergeResults(closest, alternate);
+            }));
+        } finally {
+            pool.shutdown();
+        }
 
-            Thread writeThread = new Thread(new ImageWriter());
-            writeThread.setDaemon(true);
-            writeThread.start();
+        for (final PixelList pixelList : stitchImage.getPixelLists()) {
+            stitchImage.removeAlternate(pixelList.getColor());
+        }
+    }
 
-            executorService.shutdown();
-            while (!executorService.isTerminated()) {
-                // Wait for all threads to finish
+    private void convertTile(final int tile) {
+        final int width = image.getWidth(), height = image.getHeight();
+        final int tilesAcross = (width + tileSize - 1) / tileSize;
+        final int left = tile % tilesAcross * tileSize, top = tile / tilesAcross * tileSize;
+        final int right = Math.min(left + tileSize, width), bottom = Math.min(top + tileSize, height);
+        for (int y = top; y < bottom; y++) {
+            final int end = y * width + right;
+            for (int offset = y * width + left; offset < end; offset++) {
+                if (lookupTable != null) {
+                    final int entry = lookupTable.lookup(pixels[offset]);
+                    closest[offset] = PaletteLookupTable.first(entry);
+                    alternate[offset] = PaletteLookupTable.second(entry);
+                } else {
+                    final long match = uniqueColorMatches[histogram.indexOf(pixels[offset])];
+                    closest[offset] = PaletteSearch.first(match);
+                    alternate[offset] = PaletteSearch.second(match);
+                }
             }
+        }
+        final double progress = (double) convertedCount.addAndGet((right - left) * (bottom - top)) / (width * height);
+        progressListener.onProgress(progress, Resources.getString("conversion_processing_colors"));
+    }
 
-            outputQueue.put(poisonPill);
-            writeThread.join();
+    /**
+     * Writes the converted pixels into the grid of the stitch image and the
+     * palette colors back into the image.
+     *
+     * @param closest   - the palette index of every pixel, row by row.
+     * @param alternate - the second closest palette index of every pixel, or
+     *                  null if the conversion has no alternates.
+     */
+    protected final void mergeResults(final int[] closest, final int[] alternate) {
+        final int width = image.getWidth(), height = image.getHeight();
+        final int paletteSize = paletteSearch.size();
+        final StitchColor[] colors = new StitchColor[paletteSize];
+        for (int index = 0; index < paletteSize; index++) {
+            colors[index] = paletteSearch.get(index);
+        }
+        final int[] alternateCounts = new int[paletteSize];
+        if (alternate != null) {
+            for (final int index : alternate) {
+                if (index != -1) {
+                    alternateCounts[index]++;
+                }
+            }
+        }
+
+        stitchImage.setPixels(colors, closest);
+        IntStream.range(0, height).parallel().forEach(y -> {
+            final int[] row = new int[width];
+            for (int x = 0; x < width; x++) {
+                row[x] = colors[closest[y * width + x]].getRGB();
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        });
 
-            for (final PixelList pixelList : stitchImage.getPixelLists()) {
-                stitchImage.removeAlternate(pixelList.getColor());
+        for (int index = 0; index < paletteSize; index++) {
+            if (alternateCounts[index] != 0) {
+                stitchImage.addAlternateColor(colors[index], alternateCounts[index]);
             }
-        } catch (final InterruptedException e) {
-            Thread.currentThread().interrupt();
-            LogPrinter.print(e);
-            LogPrinter.error(Resources.getString("error_has_occurred"));
         }
     }
+
+    /**
+     * Matches every distinct color of the image against the palette once, so
+     * the converters only look up the result of each pixel.
+     */
+    private void matchUniqueColors() {
+        histogram = new ColorHistogram();
+        for (final int rgb : pixels) {
+            histogram.add(rgb);
+        }
+        uniqueColorMatches = new long[histogram.size()];
+        IntStream.range(0, histogram.size()).parallel()
+                .forEach(id -> uniqueColorMatches[id] = paletteSearch.nearestTwo(histogram.getColor(id)));
+
+        final String message = Resources.getString("conversion_unique_colors", histogram.size(),
+                histogram.getTotal(), histogram.getTotal() - histogram.size());
+        progressListener.onProgress(0.0, message);
+    }
 }
\ No newline at end of file
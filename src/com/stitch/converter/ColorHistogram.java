@@ -0,0 +1,129 @@
+package com.stitch.converter;
+
+import java.util.Arrays;
+
+/**
+ * Counts the distinct RGB values of an image with an open addressing table of
+ * primitive ints.
+ * <p>
+ * Every distinct color gets a dense id in the order it was first added, so
+ * per-color results can be kept in plain arrays indexed by that id.
+ *
+ * @author Reinvert
+ *
+ */
+final class ColorHistogram {
+	private static final int EMPTY = -1;
+
+	private int[] table;
+	private int[] colors;
+	private int[] counts;
+	private int size = 0;
+	private long total = 0;
+
+	ColorHistogram() {
+		this(256);
+	}
+
+	ColorHistogram(final int expectedSize) {
+		final int capacity = Integer.highestOneBit(Math.max(16, expectedSize) * 2 - 1) << 1;
+		table = new int[capacity];
+		Arrays.fill(table, EMPTY);
+		colors = new int[capacity / 2];
+		counts = new int[capacity / 2];
+	}
+
+	/**
+	 * Counts one pixel of the color.
+	 *
+	 * @param rgb - the RGB value. The alpha value is ignored.
+	 * @return the id of the color.
+	 */
+	int add(final int rgb) {
+		final int color = rgb & 0xFFFFFF;
+		int slot = slot(color);
+		while (table[slot] != EMPTY) {
+			final int id = table[slot];
+			if (colors[id] == color) {
+				counts[id]++;
+				total++;
+				return id;
+			}
+			slot = (slot + 1) & (table.length - 1);
+		}
+		if (size == colors.length) {
+			grow();
+			return add(color);
+		}
+		final int id = size++;
+		colors[id] = color;
+		counts[id] = 1;
+		table[slot] = id;
+		total++;
+		return id;
+	}
+
+	/**
+	 * Gets the id of the color.
+	 *
+	 * @param rgb - the RGB value. The alpha value is ignored.
+	 * @return the id, or -1 if the color was never added.
+	 */
+	int indexOf(final int rgb) {
+		final int color = rgb & 0xFFFFFF;
+		int slot = slot(color);
+		while (table[slot] != EMPTY) {
+			final int id = table[slot];
+			if (colors[id] == color) {
+				return id;
+			}
+			slot = (slot + 1) & (table.length - 1);
+		}
+		return -1;
+	}
+
+	int getColor(final int id) {
+		return colors[id];
+	}
+
+	int getCount(final int id) {
+		return counts[id];
+	}
+
+	/**
+	 * Gets the number of distinct colors.
+	 *
+	 * @return the number of distinct colors.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of pixels added.
+	 *
+	 * @return the number of pixels.
+	 */
+	long getTotal() {
+		return total;
+	}
+
+	private int slot(final int color) {
+		final int hash = color * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (table.length - 1);
+	}
+
+	private void grow() {
+		table = new int[table.length * 2];
+		Arrays.fill(table, EMPTY);
+		colors = Arrays.copyOf(colors, colors.length * 2);
+		counts = Arrays.copyOf(counts, counts.length * 2);
+		for (int id = 0; id < size; id++) {
+			int slot = slot(colors[id]);
+			while (table[slot] != EMPTY) {
+				slot = (slot + 1) & (table.length - 1);
+			}
+			table[slot] = id;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package com.stitch.converter;
+
+/**
+ * Measures the difference between two packed RGB colors.
+ * <p>
+ * Implementations are called for every pixel and palette color pair, so they
+ * should only do integer arithmetic on the packed values, without allocating or
+ * validating anything. The alpha value of the packed colors must be ignored.
+ *
+ * @author Reinvert
+ *
+ */
+public interface ColorMetric {
+	int RED = 0, GREEN = 1, BLUE = 2;
+
+	/**
+	 * Gets the name of the metric. The name identifies cached lookup tables, so
+	 * it must change whenever the distances change.
+	 *
+	 * @return the name.
+	 */
+	String getName();
+
+	/**
+	 * Calculates the difference between two colors.
+	 *
+	 * @param rgb   - the first color.
+	 * @param other - the second color.
+	 * @return the difference. Never negative.
+	 */
+	int distance(int rgb, int other);
+
+	/**
+	 * Gets the smallest amount a difference on one channel can add to
+	 * {@link #distance(int, int) distance}, whatever the other channels are.
+	 *
+	 * @param channel    - {@link #RED}, {@link #GREEN} or {@link #BLUE}.
+	 * @param difference - the channel difference, between -255 and 255.
+	 * @return the lower bound.
+	 */
+	int channelMinimum(int channel, int difference);
+
+	/**
+	 * Gets the largest amount a difference on one channel can add to
+	 * {@link #distance(int, int) distance}, whatever the other channels are. Must
+	 * not decrease as the absolute difference grows.
+	 *
+	 * @param channel    - {@link #RED}, {@link #GREEN} or {@link #BLUE}.
+	 * @param difference - the channel difference, between -255 and 255.
+	 * @return the upper bound.
+	 */
+	int channelMaximum(int channel, int difference);
+
+	/**
+	 * The metrics shipped with the converter.
+	 */
+	enum Standard implements ColorMetric {
+		/**
+		 * Squared Euclidean distance in RGB.
+		 */
+		EUCLIDEAN {
+			@Override
+			public int distance(final int rgb, final int other) {
+				final int red = ((rgb >> 16) & 0xFF) - ((other >> 16) & 0xFF);
+				final int green = ((rgb >> 8) & 0xFF) - ((other >> 8) & 0xFF);
+				final int blue = (rgb & 0xFF) - (other & 0xFF);
+				return red * red + green * green + blue * blue;
+			}
+
+			@Override
+			public int channelMinimum(final int channel, final int difference) {
+				return difference * difference;
+			}
+
+			@Override
+			public int channelMaximum(final int channel, final int difference) {
+				return difference * difference;
+			}
+		},
+		/**
+		 * Squared RGB distance with red and blue weighted by the mean red value,
+		 * which tracks perceived difference better than plain RGB.
+		 */
+		REDMEAN {
+			@Override
+			public int distance(final int rgb, final int other) {
+				final int redMean = (((rgb >> 16) & 0xFF) + ((other >> 16) & 0xFF)) >> 1;
+				final int red = ((rgb >> 16) & 0xFF) - ((other >> 16) & 0xFF);
+				final int green = ((rgb >> 8) & 0xFF) - ((other >> 8) & 0xFF);
+				final int blue = (rgb & 0xFF) - (other & 0xFF);
+				return (((512 + redMean) * red * red) >> 8) + 4 * green * green
+						+ (((767 - redMean) * blue * blue) >> 8);
+			}
+
+			@Override
+			public int channelMinimum(final int channel, final int difference) {
+				return (channel == GREEN ? 4 : 2) * difference * difference;
+			}
+
+			@Override
+			public int channelMaximum(final int channel, final int difference) {
+				return (channel == GREEN ? 4 : 3) * difference * difference;
+			}
+		},
+		/**
+		 * Squared RGB distance weighted by the contribution of each channel to
+		 * luma (ITU-R BT.601).
+		 */
+		LUMA {
+			private final int[] weights = { 299, 587, 114 };
+
+			@Override
+			public int distance(final int rgb, final int other) {
+				final int red = ((rgb >> 16) & 0xFF) - ((other >> 16) & 0xFF);
+				final int green = ((rgb >> 8) & 0xFF) - ((other >> 8) & 0xFF);
+				final int blue = (rgb & 0xFF) - (other & 0xFF);
+				return 299 * red * red + 587 * green * green + 114 * blue * blue;
+			}
+
+			@Override
+			public int channelMinimum(final int channel, final int difference) {
+				return weights[channel] * difference * difference;
+			}
+
+			@Override
+			public int channelMaximum(final int channel, final int difference) {
+				return weights[channel] * difference * difference;
+			}
+		},
+		/**
+		 * CIEDE2000 difference in CIELAB space, in thousandths. Its channel bounds
+		 * are the widest possible, so it is searched by {@link LabPalette} instead
+		 * of the RGB structures.
+		 */
+		CIEDE2000 {
+			@Override
+			public int distance(final int rgb, final int other) {
+				return CieLab.difference(rgb, other);
+			}
+
+			@Override
+			public int channelMinimum(final int channel, final int difference) {
+				return 0;
+			}
+
+			@Override
+			public int channelMaximum(final int channel, final int difference) {
+				// Differences between sRGB colors stay well below 200.
+				return 200000;
+			}
+		};
+
+		@Override
+		public String getName() {
+			return name();
+		}
+
+		/**
+		 * Gets the metric of the name, ignoring case.
+		 *
+		 * @param name - the name.
+		 * @return the metric, or {@link #EUCLIDEAN} if no metric has the name.
+		 */
+		public static ColorMetric forName(final String name) {
+			for (final Standard metric : values()) {
+				if (metric.name().equalsIgnoreCase(name)) {
+					return metric;
+				}
+			}
+			return EUCLIDEAN;
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package com.stitch.converter;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.stitch.converter.model.ColorHierarchy;
+import com.stitch.converter.model.StitchColor;
+
+/**
+ * Reduces the number of colors of a converted image one color at a time,
+ * without converting the image again.
+ * <p>
+ * Every cell remembers its color in the source image. When a color is
+ * dropped, only the cells using it are matched again, against the colors still
+ * in use, and the color counts are updated in place. Cells of the same source
+ * color are matched once per dropped color, so reducing the colors costs about
+ * as much as the cells it moves.
+ *
+ * @author Reinvert
+ *
+ */
+final class ColorReducer {
+	private final StitchColor[] colors;
+	private final PaletteSearch search;
+	private final boolean[] active;
+	private int activeCount;
+	private final int[] counts;
+	// The cells of every color, in the first counts[index] elements.
+	private final int[][] cells;
+	/*
+	 * Every pair of colors as (distance << 32 | first * size + second), closest
+	 * first. Distances never change, so a pair only goes stale when one of its
+	 * colors is dropped, and the closest pair left is never behind the cursor.
+	 */
+	private final long[] pairs;
+	private int nextPair = 0;
+
+	private final int[] cellColor;
+	private final int[] cellSource;
+	private final ColorHistogram histogram;
+	// The color matched to every source color, valid while the stamp is the current step.
+	private final int[] matched, matchedStep;
+	private int step = 0;
+
+	/**
+	 * Creates the reducer.
+	 *
+	 * @param colors    - the colors used by the image.
+	 * @param source    - the source RGB value of every cell.
+	 * @param cellColor - the index of the color of every cell in the color list.
+	 *                  The array is updated as colors are dropped.
+	 * @param metric    - the metric to compare colors with.
+	 */
+	ColorReducer(final List<StitchColor> colors, final int[] source, final int[] cellColor, final ColorMetric metric) {
+		this.colors = colors.toArray(new StitchColor[colors.size()]);
+		this.search = PaletteSearch.create(colors, metric);
+		this.cellColor = cellColor;
+		active = new boolean[this.colors.length];
+		Arrays.fill(active, true);
+		activeCount = this.colors.length;
+
+		counts = new int[this.colors.length];
+		for (final int index : cellColor) {
+			counts[index]++;
+		}
+		cells = new int[this.colors.length][];
+		for (int index = 0; index < this.colors.length; index++) {
+			cells[index] = new int[Math.max(counts[index], 4)];
+		}
+		final int[] filled = new int[this.colors.length];
+		histogram = new ColorHistogram(Math.min(source.length, 1 << 16));
+		cellSource = new int[source.length];
+		for (int cell = 0; cell < source.length; cell++) {
+			cells[cellColor[cell]][filled[cellColor[cell]]++] = cell;
+			cellSource[cell] = histogram.add(source[cell]);
+		}
+		matched = new int[histogram.size()];
+		matchedStep = new int[histogram.size()];
+
+		final int size = this.colors.length;
+		// CIEDE2000 compares the Lab values the search already holds instead of converting both colors of every pair.
+		final double[] labs = search instanceof LabPalette ? ((LabPalette) search).getLabs() : null;
+		pairs = new long[size * (size - 1) / 2];
+		int pair = 0;
+		for (int i = 0; i < size; i++) {
+			final int rgb = this.colors[i].getRGB();
+			for (int j = i + 1; j < size; j++) {
+				final int distance = labs != null ? CieLab.difference(labs, i, labs, j)
+						: metric.distance(rgb, this.colors[j].getRGB());
+				pairs[pair++] = ((long) distance << 32) | (i * size + j);
+			}
+		}
+		// Equal distances keep the order of the pair indices, as the old scan over all pairs did.
+		Arrays.sort(pairs);
+	}
+
+	/**
+	 * Gets the number of colors still in use.
+	 *
+	 * @return the number of colors.
+	 */
+	int getColorCount() {
+		return activeCount;
+	}
+
+	/**
+	 * Checks whether the color is still in use.
+	 *
+	 * @param index - the index of the color.
+	 * @return true if the color is in use.
+	 */
+	boolean isActive(final int index) {
+		return active[index];
+	}
+
+	/**
+	 * Finds the color to drop: the less used one of the two closest colors.
+	 *
+	 * @return the index of the color, or -1 if fewer than two colors are used.
+	 */
+	int findColorToRemove() {
+		for (; nextPair < pairs.length; nextPair++) {
+			final int pair = (int) pairs[nextPair];
+			final int i = pair / colors.length, j = pair % colors.length;
+			if (active[i] && active[j]) {
+				return counts[i] >= counts[j] ? j : i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Drops the color and moves each of its cells to the closest color left
+	 * for the source color of the cell.
+	 *
+	 * @param index - the index of the color.
+	 */
+	void remove(final int index) {
+		if (!active[index] || activeCount == 1) {
+			return;
+		}
+		active[index] = false;
+		activeCount--;
+		step++;
+		final int[] removedCells = cells[index];
+		for (int i = 0; i < counts[index]; i++) {
+			final int cell = removedCells[i];
+			final int source = cellSource[cell];
+			if (matchedStep[source] != step) {
+				matched[source] = search.nearest(histogram.getColor(source), active);
+				matchedStep[source] = step;
+			}
+			final int target = matched[source];
+			cellColor[cell] = target;
+			if (counts[target] == cells[target].length) {
+				cells[target] = Arrays.copyOf(cells[target], cells[target].length * 2);
+			}
+			cells[target][counts[target]++] = cell;
+		}
+		counts[index] = 0;
+		cells[index] = null;
+	}
+
+	/**
+	 * Drops colors until at most the limit is left.
+	 *
+	 * @param limit - the maximum number of colors.
+	 */
+	void reduceTo(final int limit) {
+		while (activeCount > Math.max(limit, 1)) {
+			remove(findColorToRemove());
+		}
+	}
+
+	/**
+	 * Drops colors down to a single one, recording the cells every step moves,
+	 * so the image can be rebuilt for any color limit later. The colors are
+	 * dropped in the same order as {@link #reduceTo(int)} would drop them.
+	 *
+	 * @param width - the width of the image.
+	 * @return the hierarchy of the dropped colors.
+	 */
+	ColorHierarchy buildHierarchy(final int width) {
+		final int[] initial = cellColor.clone();
+		final int steps = Math.max(activeCount - 1, 0);
+		final int[] removed = new int[steps];
+		final int[] stepStart = new int[steps + 1];
+		int[] movedCells = new int[Math.max(cellColor.length, 16)];
+		int[] movedTargets = new int[movedCells.length];
+		int moves = 0;
+		for (int i = 0; i < steps; i++) {
+			final int index = findColorToRemove();
+			final int count = counts[index];
+			if (moves + count > movedCells.length) {
+				final int length = Math.max(movedCells.length * 2, moves + count);
+				movedCells = Arrays.copyOf(movedCells, length);
+				movedTargets = Arrays.copyOf(movedTargets, length);
+			}
+			System.arraycopy(cells[index], 0, movedCells, moves, count);
+			remove(index);
+			for (int move = moves; move < moves + count; move++) {
+				movedTargets[move] = cellColor[movedCells[move]];
+			}
+			removed[i] = index;
+			moves += count;
+			stepStart[i + 1] = moves;
+		}
+		return new ColorHierarchy(colors, width, initial, removed, stepStart, Arrays.copyOf(movedCells, moves),
+				Arrays.copyOf(movedTargets, moves));
+	}
+}
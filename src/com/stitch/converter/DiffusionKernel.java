@@ -0,0 +1,80 @@
+package com.stitch.converter;
+
+/**
+ * An error diffusion kernel, kept as flat arrays so the dithering loop reads
+ * the neighbours of a pixel without building anything.
+ * <p>
+ * Every entry spreads {@link #weight weight[i]} of the error to the pixel
+ * {@link #x x[i]} columns right of and {@link #y y[i]} rows below the current
+ * one. Entries never point above the current row, or left of it on the same
+ * row.
+ *
+ * @author Reinvert
+ *
+ */
+final class DiffusionKernel {
+	static final DiffusionKernel FLOYD_STEINBERG = new DiffusionKernel(
+			new int[] { 1, -1, 0, 1 },
+			new int[] { 0, 1, 1, 1 },
+			new double[] { 7d / 16d, 3d / 16d, 5d / 16d, 1d / 16d });
+	static final DiffusionKernel SIERRA = new DiffusionKernel(
+			new int[] { 1, 2, -2, -1, 0, 1, 2, -1, 0, 1 },
+			new int[] { 0, 0, 1, 1, 1, 1, 1, 2, 2, 2 },
+			new double[] { 5d / 32d, 3d / 32d, 2d / 32d, 4d / 32d, 5d / 32d, 4d / 32d, 2d / 32d, 2d / 32d, 3d / 32d,
+					2d / 32d });
+
+	final int[] x, y;
+	final double[] weight;
+	/**
+	 * The number of rows the kernel touches, the current row included.
+	 */
+	final int rows;
+	/**
+	 * How many columns past the current one the row above must have finished
+	 * before the current pixel is dithered. Until then, the row above may still
+	 * add to the current pixel, or to a pixel the current one is about to
+	 * update, and the order of the updates would change the rounding.
+	 */
+	final int lag;
+
+	private DiffusionKernel(final int[] x, final int[] y, final double[] weight) {
+		this.x = x;
+		this.y = y;
+		this.weight = weight;
+		int bottom = 0;
+		for (final int row : y) {
+			bottom = Math.max(bottom, row);
+		}
+		this.rows = bottom + 1;
+		// Rows two apart only need half the lag, so comparing them too is safe.
+		int lag = 0;
+		for (int i = 0; i < x.length; i++) {
+			if (y[i] > 0) {
+				lag = Math.max(lag, -x[i]);
+			}
+			for (int j = 0; j < x.length; j++) {
+				if (y[j] > y[i]) {
+					lag = Math.max(lag, x[i] - x[j]);
+				}
+			}
+		}
+		this.lag = lag;
+	}
+
+	/**
+	 * Gets the kernel of the convert mode.
+	 *
+	 * @param convertMode - {@link GraphicsEngine#FLOYD} or
+	 *                    {@link GraphicsEngine#SIERRA}.
+	 * @return the kernel, or null if the mode doesn't diffuse errors.
+	 */
+	static DiffusionKernel forMode(final int convertMode) {
+		if (convertMode == GraphicsEngine.FLOYD) {
+			return FLOYD_STEINBERG;
+		}
+		if (convertMode == GraphicsEngine.SIERRA) {
+			return SIERRA;
+		}
+		return null;
+	}
+}
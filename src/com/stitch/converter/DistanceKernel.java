@@ -0,0 +1,62 @@
+package com.stitch.converter;
+
+/**
+ * Finds the closest color of a {@link FloatPalette} by squared RGB distance.
+ * <p>
+ * {@link #getInstance()} returns a vectorized kernel when the
+ * {@code jdk.incubator.vector} module is available, and this scalar kernel
+ * otherwise. Both give the same answer: the lowest palette index among the
+ * closest colors.
+ *
+ * @author Reinvert
+ *
+ */
+class DistanceKernel {
+	private static final String VECTOR_MODULE = "jdk.incubator.vector";
+	private static final DistanceKernel instance = create();
+
+	static DistanceKernel getInstance() {
+		return instance;
+	}
+
+	private static DistanceKernel create() {
+		if (ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) {
+			try {
+				return (DistanceKernel) Class.forName("com.stitch.converter.VectorDistanceKernel")
+						.getDeclaredConstructor().newInstance();
+			} catch (final ReflectiveOperationException | LinkageError e) {
+				LogPrinter.print(e);
+			}
+		}
+		return new DistanceKernel();
+	}
+
+	DistanceKernel() {
+	}
+
+	/**
+	 * Finds the palette index closest to the color.
+	 *
+	 * @param palette - the palette.
+	 * @param red     - the red value, between 0 and 255.
+	 * @param green   - the green value, between 0 and 255.
+	 * @param blue    - the blue value, between 0 and 255.
+	 * @return the palette index, or -1 if the palette is empty.
+	 */
+	int nearest(final FloatPalette palette, final float red, final float green, final float blue) {
+		int nearest = -1;
+		float difference = Float.MAX_VALUE;
+		for (int i = 0; i < palette.size(); i++) {
+			final float redDifference = palette.red[i] - red;
+			final float greenDifference = palette.green[i] - green;
+			final float blueDifference = palette.blue[i] - blue;
+			final float calculatedDifference = redDifference * redDifference + greenDifference * greenDifference
+					+ blueDifference * blueDifference;
+			if (calculatedDifference < difference) {
+				nearest = i;
+				difference = calculatedDifference;
+			}
+		}
+		return nearest;
+	}
+}
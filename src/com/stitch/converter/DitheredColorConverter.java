@@ -1,153 +1,189 @@
 package com.stitch.converter;
 
 import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
 
-import com.stitch.converter.model.Pixel;
 import com.stitch.converter.model.StitchColor;
 
-import javafx.scene.paint.Color;
-
 public class DitheredColorConverter extends ColorConverter {
 
     private int convertMode = GraphicsEngine.FLOYD;
     private boolean isGammaBased = true;
+    private final FloatPalette palette;
+    private final DistanceKernel kernel = DistanceKernel.getInstance();
+    private final boolean isKernelMetric;
+    // The linear value of every channel level, and of every palette color.
+    private final float[] channelToLinear = new float[256];
+    private final float[] paletteRed, paletteGreen, paletteBlue;
 
     DitheredColorConverter(Builder builder) {
         super(builder);
         convertMode = builder.convertMode;
         isGammaBased = builder.isGammaBased;
+        palette = new FloatPalette(new ArrayList<>(colorList));
+        isKernelMetric = builder.colorMetric == ColorMetric.Standard.EUCLIDEAN;
+        for (int value = 0; value < 256; value++) {
+            channelToLinear[value] = (float) (isGammaBased ? SrgbTransfer.decode(value) : value / 255d);
+        }
+        paletteRed = new float[palette.size()];
+        paletteGreen = new float[palette.size()];
+        paletteBlue = new float[palette.size()];
+        for (int index = 0; index < palette.size(); index++) {
+            final StitchColor color = palette.get(index);
+            paletteRed[index] = channelToLinear[color.getRed()];
+            paletteGreen[index] = channelToLinear[color.getGreen()];
+            paletteBlue[index] = channelToLinear[color.getBlue()];
+        }
     }
 
+    /**
+     * Dithers the image row by row. Only the rows the kernel reaches are kept,
+     * as linear channel values in floats, so the memory grows with the width
+     * and the loop allocates nothing. The values are clamped after every
+     * update. Gamma is handled by {@link SrgbTransfer} tables, so the loop does
+     * no transcendental math either.
+     * <p>
+     * Rows run on separate threads as a wavefront: every row stays
+     * {@link DiffusionKernel#lag lag} columns behind the row above, so each
+     * value receives its updates in the same order as a single pass would give
+     * it, and the result doesn't depend on the thread count.
+     */
     @Override
     public void run() {
-    	final int imageSize = image.getWidth()*image.getHeight();
-    	//final int updateInterval = 1000;
-    	int count=0;
-        List<List<Color>> doubleValueImage = new ArrayList<>();
-        
-        for (int x = 0; x < image.getWidth(); x++) {
-            List<Color> row = new ArrayList<>();
-            for (int y = 0; y < image.getHeight(); y++) {
-                row.add(gammaToLinear(new StitchColor(image.getRGB(x, y), "").asFX(), isGammaBased));
-            }
-            doubleValueImage.add(row);
-        }
-        for (int y = 0; y < image.getHeight(); y++) {
-            for (int x = 0; x < image.getWidth(); x++) {
-                Color color = doubleValueImage.get(x).get(y);
-                StitchColor outputColor = findClosestColor(color);
-
-                Pixel pixel = new Pixel(x, y, outputColor);
-                image.setRGB(x, y, pixel.getColor().getRGB());
-                stitchImage.add(pixel);
-
-                Color outputLinearColor = gammaToLinear(outputColor.asFX(), isGammaBased);
-
-                double redDifference = color.getRed() - outputLinearColor.getRed();
-                double greenDifference = color.getGreen() - outputLinearColor.getGreen();
-                double blueDifference = color.getBlue() - outputLinearColor.getBlue();
-
-                DifferenceCalc calc = new DifferenceCalc(redDifference, greenDifference, blueDifference);
-                applyErrorDiffusion(doubleValueImage, x, y, calc);
-                progressListener.onProgress((double) ++count / imageSize, Resources.getString("conversion_processing_colors"));
-            }
+        // A waiting row spins, so threads beyond the processor count only slow the others down.
+        final Wavefront wavefront = new Wavefront(
+                Math.min(Math.min(thread, Runtime.getRuntime().availableProcessors()), image.getHeight()));
+        final ForkJoinPool pool = new ForkJoinPool(wavefront.workers);
+        try {
+            pool.invoke(ForkJoinTask.adapt(() -> {
+                IntStream.range(0, wavefront.workers).parallel().forEach(worker -> wavefront.work());
+                mergeResults(wavefront.closest, null);
+            }));
+        } finally {
+            pool.shutdown();
         }
     }
 
-    private StitchColor findClosestColor(Color color) {
-        double difference = Double.MAX_VALUE;
-        StitchColor closestColor = null;
-        for (StitchColor listColor : colorList) {
-            double calculatedDifference = ImageTools.calculateDifference(linearToGamma(color, isGammaBased), listColor.asFX());
-            if (calculatedDifference < difference) {
-                closestColor = listColor;
-                difference = calculatedDifference;
+    /**
+     * The state shared by the dithering threads. Rows are claimed in order, and
+     * the buffers are reused every {@link #workers} rows, so a thread claiming a
+     * row only waits if the row that many above it is still being dithered.
+     */
+    private final class Wavefront {
+        private final int workers;
+        private final DiffusionKernel diffusion;
+        private final int width, height;
+        private final float[][] window;
+        // The number of finished columns of every row.
+        private final AtomicIntegerArray finished;
+        private final AtomicInteger nextRow = new AtomicInteger();
+        private final int[] closest;
+
+        private Wavefront(final int workers) {
+            this.workers = Math.max(1, workers);
+            this.diffusion = DiffusionKernel.forMode(convertMode);
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            final int kernelRows = diffusion == null ? 1 : diffusion.rows;
+            this.window = new float[this.workers + kernelRows - 1][width * 3];
+            this.finished = new AtomicIntegerArray(height);
+            this.closest = new int[width * height];
+            final int[] sourceRow = new int[width];
+            for (int y = 0; y < Math.min(kernelRows - 1, height); y++) {
+                loadRow(y, sourceRow, window[y % window.length]);
             }
         }
-        return closestColor;
-    }
-
-    private void applyErrorDiffusion(List<List<Color>> image, int x, int y, DifferenceCalc calc) {
-        int[][] offsets;
-        double[] factors;
-
-        if (convertMode == GraphicsEngine.FLOYD) {
-            offsets = new int[][]{{1, 0}, {-1, 1}, {0, 1}, {1, 1}};
-            factors = new double[]{7.0 / 16.0, 3.0 / 16.0, 5.0 / 16.0, 1.0 / 16.0};
-        } else if (convertMode == GraphicsEngine.SIERRA) {
-            offsets = new int[][]{{1, 0}, {2, 0}, {-2, 1}, {-1, 1}, {0, 1}, {1, 1}, {2, 1}, {-1, 2}, {0, 2}, {1, 2}};
-            factors = new double[]{5.0 / 32.0, 3.0 / 32.0, 2.0 / 32.0, 4.0 / 32.0, 5.0 / 32.0, 4.0 / 32.0, 2.0 / 32.0, 2.0 / 32.0, 3.0 / 32.0, 2.0 / 32.0};
-        } else {
-            return;
-        }
 
-        for (int i = 0; i < offsets.length; i++) {
-            int newX = x + offsets[i][0];
-            int newY = y + offsets[i][1];
-            if (isValidCoordinate(newX, newY, image)) {
-                Color nextColor = image.get(newX).get(newY);
-                image.get(newX).set(newY, calc.calc(nextColor, factors[i]));
+        private void work() {
+            final int[] sourceRow = new int[width];
+            // Other metrics search the palette through a query of this thread, which keeps its state between pixels.
+            final PaletteSearch.Query query = isKernelMetric ? null : paletteSearch.newQuery();
+            final int kernelRows = diffusion == null ? 1 : diffusion.rows;
+            final int lag = diffusion == null ? 0 : diffusion.lag;
+            for (int y = nextRow.getAndIncrement(); y < height; y = nextRow.getAndIncrement()) {
+                // The buffer of the new row last held this one.
+                if (y >= workers) {
+                    awaitColumns(y - workers, width);
+                }
+                if (y + kernelRows - 1 < height) {
+                    loadRow(y + kernelRows - 1, sourceRow, window[(y + kernelRows - 1) % window.length]);
+                }
+                final float[] row = window[y % window.length];
+                int available = y == 0 ? width : 0;
+                for (int x = 0; x < width; x++) {
+                    if (diffusion != null && available < Math.min(x + lag + 1, width)) {
+                        available = awaitColumns(y - 1, Math.min(x + lag + 1, width));
+                    }
+                    final float red = row[x * 3], green = row[x * 3 + 1], blue = row[x * 3 + 2];
+                    final int index = findClosestColor(red, green, blue, query);
+                    closest[y * width + x] = index;
+                    if (diffusion != null) {
+                        diffuse(x, y, (double) red - paletteRed[index], (double) green - paletteGreen[index],
+                                (double) blue - paletteBlue[index]);
+                    }
+                    finished.lazySet(y, x + 1);
+                }
+                progressListener.onProgress((double) (y + 1) / height,
+                        Resources.getString("conversion_processing_colors"));
             }
         }
-    }
-
-    private boolean isValidCoordinate(int x, int y, List<List<Color>> image) {
-        return x >= 0 && x < image.size() && y >= 0 && y < image.get(0).size();
-    }
 
-    private static Color gammaToLinear(Color color, boolean isGammaBased) {
-        if (!isGammaBased) {
-            return color;
+        private int awaitColumns(final int y, final int columns) {
+            int available;
+            for (int spin = 0; (available = finished.get(y)) < columns; spin++) {
+                if (spin < 100) {
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+            }
+            return available;
         }
-        return new Color(gammaToLinear(color.getRed()), gammaToLinear(color.getGreen()), gammaToLinear(color.getBlue()), 1.0);
-    }
 
-    private static Color linearToGamma(Color color, boolean isGammaBased) {
-        if (!isGammaBased) {
-            return color;
+        private void diffuse(final int x, final int y, final double redDifference, final double greenDifference,
+                final double blueDifference) {
+            for (int i = 0; i < diffusion.weight.length; i++) {
+                final int targetX = x + diffusion.x[i], targetY = y + diffusion.y[i];
+                if (targetX < 0 || targetX >= width || targetY >= height) {
+                    continue;
+                }
+                final float[] target = window[targetY % window.length];
+                final int offset = targetX * 3;
+                final double factor = diffusion.weight[i];
+                target[offset] = clamp(target[offset] + redDifference * factor);
+                target[offset + 1] = clamp(target[offset + 1] + greenDifference * factor);
+                target[offset + 2] = clamp(target[offset + 2] + blueDifference * factor);
+            }
         }
-        return new Color(linearToGamma(color.getRed()), linearToGamma(color.getGreen()), linearToGamma(color.getBlue()), 1.0);
     }
 
-    private static double linearToGamma(double value) {
-        if (value < 0 || value > 1) {
-            throw new ArithmeticException("Input value should be between 0 and 1. Input Value: " + value);
-        }
-        if (value <= 0.0031308) {
-            return value * 12.92;
+    private void loadRow(final int y, final int[] sourceRow, final float[] row) {
+        image.getRGB(0, y, image.getWidth(), 1, sourceRow, 0, image.getWidth());
+        for (int x = 0; x < sourceRow.length; x++) {
+            row[x * 3] = channelToLinear[(sourceRow[x] >> 16) & 0xFF];
+            row[x * 3 + 1] = channelToLinear[(sourceRow[x] >> 8) & 0xFF];
+            row[x * 3 + 2] = channelToLinear[sourceRow[x] & 0xFF];
         }
-        return Math.pow(value, 1.0 / 2.4) * 1.055 - 0.055;
     }
 
-    private static double gammaToLinear(double value) {
-        if (value < 0 || value > 1) {
-            throw new ArithmeticException("Input value should be between 0 and 1. Input Value: " + value);
+    private int findClosestColor(final float linearRed, final float linearGreen, final float linearBlue,
+            final PaletteSearch.Query query) {
+        final float red = isGammaBased ? SrgbTransfer.encode(linearRed) : (float) (linearRed * 255d);
+        final float green = isGammaBased ? SrgbTransfer.encode(linearGreen) : (float) (linearGreen * 255d);
+        final float blue = isGammaBased ? SrgbTransfer.encode(linearBlue) : (float) (linearBlue * 255d);
+        if (isKernelMetric) {
+            return kernel.nearest(palette, red, green, blue);
         }
-        if (value <= 0.04045) {
-            return value / 12.92;
-        }
-        return Math.pow((value + 0.055) / 1.055, 2.4);
+        // Other metrics work on packed RGB values, so round the diffused color first.
+        final int rgb = (Math.round(red) << 16) | (Math.round(green) << 8) | Math.round(blue);
+        return query.nearest(rgb);
     }
 
-    private static class DifferenceCalc {
-        private final double red, green, blue;
-
-        DifferenceCalc(double red, double green, double blue) {
-            this.red = red;
-            this.green = green;
-            this.blue = blue;
-        }
-
-        Color calc(Color nextColor, double factor) {
-            double red = clamp(nextColor.getRed() + this.red * factor);
-            double green = clamp(nextColor.getGreen() + this.green * factor);
-            double blue = clamp(nextColor.getBlue() + this.blue * factor);
-            return new Color(red, green, blue, 1.0);
-        }
-
-        private double clamp(double value) {
-            return Math.max(0.0, Math.min(1.0, value));
-        }
+    private static float clamp(final double value) {
+        return (float) Math.max(0.0, Math.min(1.0, value));
     }
 }
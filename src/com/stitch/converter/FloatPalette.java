@@ -0,0 +1,54 @@
+package com.stitch.converter;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.stitch.converter.model.StitchColor;
+
+/**
+ * A palette stored as one float array per channel, for the
+ * {@link DistanceKernel distance kernel}.
+ * <p>
+ * Channel values range from 0 to 255. The arrays are padded to a multiple of
+ * the widest vector length with infinite values, which never become the
+ * closest color.
+ *
+ * @author Reinvert
+ *
+ */
+final class FloatPalette {
+	private static final int PADDING = 16;
+
+	final float[] red, green, blue;
+	private final StitchColor[] colors;
+
+	/**
+	 * Creates the palette.
+	 *
+	 * @param colorList - the palette colors. The order of the list defines the
+	 *                  palette index of each color.
+	 */
+	FloatPalette(final List<StitchColor> colorList) {
+		colors = colorList.toArray(new StitchColor[colorList.size()]);
+		final int paddedSize = (colors.length + PADDING - 1) / PADDING * PADDING;
+		red = new float[paddedSize];
+		green = new float[paddedSize];
+		blue = new float[paddedSize];
+		Arrays.fill(red, Float.POSITIVE_INFINITY);
+		Arrays.fill(green, Float.POSITIVE_INFINITY);
+		Arrays.fill(blue, Float.POSITIVE_INFINITY);
+		for (int i = 0; i < colors.length; i++) {
+			red[i] = colors[i].getRed();
+			green[i] = colors[i].getGreen();
+			blue[i] = colors[i].getBlue();
+		}
+	}
+
+	StitchColor get(final int index) {
+		return colors[index];
+	}
+
+	int size() {
+		return colors.length;
+	}
+}
@@ -5,9 +5,14 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
+import java.util.function.Supplier;
 
 import com.opencsv.CSVReader;
 import com.opencsv.exceptions.CsvException;
+import com.stitch.converter.model.ColorHierarchy;
+import com.stitch.converter.model.ColorRegistry;
+import com.stitch.converter.model.PatternFile;
+import com.stitch.converter.model.PatternJournal;
 import com.stitch.converter.model.PixelList;
 import com.stitch.converter.model.StitchColor;
 import com.stitch.converter.model.StitchImage;
@@ -16,14 +21,19 @@ import javafx.scene.paint.Color;
 
 public final class GraphicsEngine implements Runnable{
 
-    public static final int FLOYD = 0, SIERRA = 1;
+    public static final int FLOYD = 0, SIERRA = 1, ORDERED = 2;
 
     public static class Builder {
         private StitchColor backgroundColor = new StitchColor(Color.WHITE, null);
         private int colorLimit = 0;
+        private ColorLimitMethod colorLimitMethod = ColorLimitMethod.forName(Preferences.getValue("colorLimitMethod", "MERGE"));
         private int threadCount;
+        private int tileSize = Preferences.getInteger("tileSize", ColorConverter.DEFAULT_TILE_SIZE);
         private int convertMode = Preferences.getInteger("convertMode", 0);
         private boolean isGammaBased = Preferences.getBoolean("isGammaBased", true);
+        private ColorMetric colorMetric = ColorMetric.Standard.forName(Preferences.getValue("colorMetric", "EUCLIDEAN"));
+        private ThresholdMap thresholdMap = ThresholdMap.forName(Preferences.getValue("thresholdMap", "BAYER_8"));
+        private int thresholdSpread = Preferences.getInteger("thresholdSpread", 32);
         private ProgressListener progressListener;
 
         private final File csvFile;
@@ -36,6 +46,7 @@ public final class GraphicsEngine implements Runnable{
             this.csvFile = csvFile;
             this.imageFile = imageFile;
             this.threadCount = Runtime.getRuntime().availableProcessors() + 1;
+            setThreadCount(Preferences.getInteger("workingThread", 0));
         }
 
         public GraphicsEngine build() {
@@ -52,6 +63,13 @@ public final class GraphicsEngine implements Runnable{
             return this;
         }
 
+        public Builder setColorLimitMethod(final ColorLimitMethod colorLimitMethod) {
+            if (colorLimitMethod != null) {
+                this.colorLimitMethod = colorLimitMethod;
+            }
+            return this;
+        }
+
         public Builder addListener(final Listener listener) {
             listeners.add(listener);
             return this;
@@ -74,18 +92,46 @@ public final class GraphicsEngine implements Runnable{
             return this;
         }
 
+        public Builder setTileSize(final int tileSize) {
+            if (tileSize > 0) {
+                this.tileSize = tileSize;
+            }
+            return this;
+        }
+
         public Builder setGammaBased(final boolean isGammaBased) {
             this.isGammaBased = isGammaBased;
             return this;
         }
 
         public Builder setConvertMode(final int convertMode) {
-            if (convertMode == FLOYD || convertMode == SIERRA) {
+            if (convertMode == FLOYD || convertMode == SIERRA || convertMode == ORDERED) {
                 this.convertMode = convertMode;
             }
             return this;
         }
 
+        public Builder setColorMetric(final ColorMetric colorMetric) {
+            if (colorMetric != null) {
+                this.colorMetric = colorMetric;
+            }
+            return this;
+        }
+
+        public Builder setThresholdMap(final ThresholdMap thresholdMap) {
+            if (thresholdMap != null) {
+                this.thresholdMap = thresholdMap;
+            }
+            return this;
+        }
+
+        public Builder setThresholdSpread(final int thresholdSpread) {
+            if (thresholdSpread >= 0) {
+                this.thresholdSpread = thresholdSpread;
+            }
+            return this;
+        }
+
         public Builder setProgressListener(final ProgressListener progressListener) {
             this.progressListener = progressListener;
             return this;
@@ -96,9 +142,42 @@ public final class GraphicsEngine implements Runnable{
         LOAD, NEW_FILE
     }
 
+    /**
+     * How the color limit is met.
+     */
+    public enum ColorLimitMethod {
+        /**
+         * Converts with the whole palette, then drops the less used one of the
+         * two closest colors until the limit is met.
+         */
+        MERGE,
+        /**
+         * Selects the palette colors closest to the colors of the image by
+         * k-medoids clustering, then converts with those colors only.
+         */
+        MEDOIDS;
+
+        /**
+         * Gets the method of the name, ignoring case.
+         *
+         * @param name - the name.
+         * @return the method, or {@link #MERGE} if no method has the name.
+         */
+        public static ColorLimitMethod forName(final String name) {
+            for (final ColorLimitMethod method : values()) {
+                if (method.name().equalsIgnoreCase(name)) {
+                    return method;
+                }
+            }
+            return MERGE;
+        }
+    }
+
     private final StitchColor backgroundColor;
     private final int colorLimit;
+    private final ColorLimitMethod colorLimitMethod;
     private final int threadCount;
+    private final int tileSize;
     private final int convertMode;
     private final File csvFile;
     private final File imageFile;
@@ -106,19 +185,27 @@ public final class GraphicsEngine implements Runnable{
     private final Mode loadMode;
     private final boolean scaled;
     private final boolean isGammaBased;
+    private final ColorMetric colorMetric;
+    private final ThresholdMap thresholdMap;
+    private final int thresholdSpread;
     private final ProgressListener progressListener;
 
     private GraphicsEngine(final Builder builder) {
         this.csvFile = builder.csvFile;
         this.imageFile = builder.imageFile;
         this.colorLimit = builder.colorLimit;
+        this.colorLimitMethod = builder.colorLimitMethod;
         this.scaled = builder.scaled;
         this.backgroundColor = builder.backgroundColor;
         this.loadMode = builder.loadMode;
         this.threadCount = builder.threadCount;
+        this.tileSize = builder.tileSize;
         this.listeners = builder.listeners;
         this.isGammaBased = builder.isGammaBased;
         this.convertMode = builder.convertMode;
+        this.colorMetric = builder.colorMetric;
+        this.thresholdMap = builder.thresholdMap;
+        this.thresholdSpread = builder.thresholdSpread;
         this.progressListener = builder.progressListener;
     }
 
@@ -160,45 +247,92 @@ public final class GraphicsEngine implements Runnable{
             return;
         }
         
-        boolean firstRun = true;
-        StitchColor colorToRemove = null;
-        Map<String, Integer> usedColorCount = new HashMap<>();
-
-        do {
-            stitchImage.setSize(image.getWidth(), image.getHeight());
-            if (!firstRun) {
-                removeColor(colorList, colorToRemove);
-            }
-            usedColorCount.clear();
+        // The converter writes the palette colors into the image, so keep the source colors for the reduction.
+        final int[] source = ImageTools.getRGB(image).clone();
+        // Converting with the selected colors only meets the limit in one pass.
+        final boolean isSelected = colorLimitMethod == ColorLimitMethod.MEDOIDS && 0 < colorLimit
+                && colorLimit < colorList.size();
+        if (isSelected) {
+            progressListener.onProgress(0.0, Resources.getString("conversion_selecting_colors", colorLimit));
+            colorList = PaletteMedoids.select(colorList, source, colorLimit, colorMetric, threadCount);
+        }
 
-            ColorConverter converter = createColorConverter(image, stitchImage, colorList);
-            Thread converterThread = new Thread(converter);
-            converterThread.setDaemon(true);
-            converterThread.start();
+        final boolean isDither = Preferences.getBoolean("isDither", true);
+        // Ordered dithering converts every pixel on its own, like the plain conversion.
+        final boolean isDiffusion = isDither && convertMode != ORDERED;
+        PaletteLookupTable lookupTable = null;
+        // Perceptual matching searches Lab space, which the RGB lookup table doesn't cover.
+        // The lookup tables are cached per palette, and a selection would rarely be reused.
+        if (!isDiffusion && !isSelected && colorMetric != ColorMetric.Standard.CIEDE2000) {
+            progressListener.onProgress(0.0, Resources.getString("conversion_preparing_lookup_table"));
             try {
-                converterThread.join();
-            } catch (InterruptedException e) {
+                lookupTable = PaletteLookupTable.load(new File(Preferences.getValue("lookupTableDirectory", "cache")), colorList, colorMetric);
+            } catch (IOException | IllegalArgumentException e) {
                 LogPrinter.print(e);
-                LogPrinter.error(Resources.getString("error_has_occurred"));
-                return;
-            }
-
-            stitchImage.setBackground(backgroundColor);
-            for (PixelList pixelList : stitchImage.getPixelLists()) {
-                usedColorCount.put(pixelList.getColor().getName(), pixelList.getCount());
             }
-            firstRun = false;
-            colorToRemove = ImageTools.calculateRemoveString(stitchImage, usedColorCount);
+        }
 
-        } while (0 < colorLimit && colorLimit < stitchImage.getPixelLists().size());
+        stitchImage.setSize(image.getWidth(), image.getHeight());
+        ColorConverter converter = createColorConverter(image, stitchImage, colorList, isDither, lookupTable);
+        Thread converterThread = new Thread(converter);
+        converterThread.setDaemon(true);
+        converterThread.start();
+        try {
+            converterThread.join();
+        } catch (InterruptedException e) {
+            LogPrinter.print(e);
+            LogPrinter.error(Resources.getString("error_has_occurred"));
+            return;
+        }
+        stitchImage.setBackground(backgroundColor);
+
+        stitchImage.setColorHierarchy(createColorHierarchyBuilder(stitchImage, source, image.getWidth()));
+        if (0 < colorLimit && colorLimit < stitchImage.getPixelLists().size()) {
+            progressListener.onProgress(0.0, Resources.getString("conversion_building_color_hierarchy"));
+            stitchImage.getColorHierarchy();
+            progressListener.onProgress(0.0, Resources.getString("conversion_reducing_colors", colorLimit));
+            stitchImage.setColorLimit(colorLimit);
+        }
 
         stitchImage.setChanged(true);
         notifyListeners(stitchImage);
         progressListener.onProgress(1.0, Resources.getString("conversion_completed"));
     }
 
+    /**
+     * Creates the builder of the order the colors of the converted image would
+     * be dropped in, down to a single color, so any color limit can be applied
+     * later without converting again. Only the cells of each dropped color are
+     * matched again, by their color in the source image, against the colors
+     * left. The colors of the cells are taken now, so the hierarchy starts from
+     * the converted image even if it is built after later edits.
+     */
+    private Supplier<ColorHierarchy> createColorHierarchyBuilder(final StitchImage stitchImage, final int[] source,
+            final int width) {
+        final List<StitchColor> usedColors = new ArrayList<>();
+        final int[] cellColor = new int[source.length];
+        for (PixelList pixelList : stitchImage.getPixelLists()) {
+            usedColors.add(pixelList.getColor());
+        }
+        // The pixel lists are numbered in the order they were listed.
+        for (int cell = 0; cell < cellColor.length; cell++) {
+            cellColor[cell] = stitchImage.getPixelList(cell % width, cell / width).getIndex();
+        }
+        final ColorMetric metric = colorMetric;
+        // The reducer moves the cells it is given, so every build starts from a copy.
+        return () -> new ColorReducer(usedColors, source, cellColor.clone(), metric).buildHierarchy(width);
+    }
+
     private void loadFromSavedFile(final File file) throws IOException, ClassNotFoundException {
-        StitchImage stitchImage = (StitchImage) Resources.readObject(file);
+        // Large files are opened lazily, so only the rows shown are read before the first frame.
+        final int lazyLoadFileSize = Preferences.getInteger("lazyLoadFileSize", 1 << 20);
+        StitchImage stitchImage = file.length() >= lazyLoadFileSize ? PatternFile.open(file) : PatternFile.load(file);
+        try {
+            PatternJournal.replay(file, stitchImage);
+        } catch (IOException e) {
+            // The pattern is still shown as it was last saved whole.
+            LogPrinter.print(e);
+        }
         notifyListeners(stitchImage);
     }
 
@@ -208,19 +342,22 @@ public final class GraphicsEngine implements Runnable{
         }
     }
 
-    private ColorConverter createColorConverter(BufferedImage image, StitchImage stitchImage, List<StitchColor> colorList) {
+    private ColorConverter createColorConverter(BufferedImage image, StitchImage stitchImage, List<StitchColor> colorList,
+            boolean isDither, PaletteLookupTable lookupTable) {
         ColorConverter.Builder builder = new ColorConverter.Builder(image, stitchImage, colorList)
                 .setThreadCount(threadCount)
+                .setTileSize(tileSize)
                 .setGammaBased(isGammaBased)
                 .setConvertMode(convertMode)
-                .setProgressListener(progressListener);
+                .setColorMetric(colorMetric)
+                .setProgressListener(progressListener)
+                .setLookupTable(lookupTable);
 
-        return Preferences.getBoolean("isDither", true) ? new DitheredColorConverter(builder) : builder.build();
-    }
-    private static void removeColor(final Collection<StitchColor> colorList, final StitchColor toRemove) {
-        colorList.removeIf(color -> color.equals(toRemove));
+        if (isDither && convertMode == ORDERED) {
+            return builder.setThresholdMap(thresholdMap, thresholdSpread).build();
+        }
+        return isDither ? new DitheredColorConverter(builder) : builder.build();
     }
-
     private static List<StitchColor> readColorList(final List<String[]> csv) {
         List<StitchColor> colors = new ArrayList<>();
         int lineNumber = 0;
@@ -230,7 +367,7 @@ public final class GraphicsEngine implements Runnable{
                 int red = Integer.parseInt(row[1]);
                 int green = Integer.parseInt(row[2]);
                 int blue = Integer.parseInt(row[3]);
-                colors.add(new StitchColor(red, green, blue, name));
+                colors.add(ColorRegistry.intern(new StitchColor(red, green, blue, name)));
                 lineNumber++;
             }
         } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
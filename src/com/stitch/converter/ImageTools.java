@@ -6,20 +6,14 @@ import java.awt.GraphicsConfiguration;
 import java.awt.GraphicsEnvironment;
 import java.awt.Transparency;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Map;
 
 import javax.imageio.ImageIO;
 
-import com.stitch.converter.model.StitchImage;
-
-import javafx.scene.paint.Color;
-
-import com.stitch.converter.model.PixelList;
-import com.stitch.converter.model.StitchColor;
-
 /**
  * A class that contains methods for manipulating
  * {@link java.awt.image.BufferedImage BufferedImage}.
@@ -29,87 +23,28 @@ import com.stitch.converter.model.StitchColor;
  */
 final class ImageTools {
 	
-	static double calculateDifference(double originalRed, double originalGreen, double originalBlue,
-			double targetRed, double targetGreen, double targetBlue) {
-		if(originalRed < 0 || originalRed > 1) {
-			throw new ArithmeticException("Input value should between 0 and 1. Input Value(originalRed): " + originalRed);
-		}
-		if(originalGreen < 0 || originalGreen > 1) {
-			throw new ArithmeticException("Input value should between 0 and 1. Input Value(originalGreen): " + originalGreen);
-		}
-		if(originalBlue < 0 || originalBlue > 1) {
-			throw new ArithmeticException("Input value should between 0 and 1. Input Value(originalBlue): " + originalBlue);
-		}
-		if(targetRed < 0 || targetRed > 1) {
-			throw new ArithmeticException("Input value should between 0 and 1. Input Value(targetRed): " + targetRed);
-		}
-		if(targetGreen < 0 || targetGreen > 1) {
-			throw new ArithmeticException("Input value should between 0 and 1. Input Value(targetGreen): " + targetGreen);
-		}
-		if(targetBlue < 0 || targetBlue > 1) {
-			throw new ArithmeticException("Input value should between 0 and 1. Input Value(targetBlue): " + targetBlue);
-		}
-		final double redDifference = Math.pow(originalRed - targetRed, 2);
-		final double greenDifference = Math.pow(originalGreen - targetGreen, 2);
-		final double blueDifference = Math.pow(originalBlue - targetBlue, 2);
-
-		return redDifference + greenDifference + blueDifference;
-	}
-	
 	/**
-	 * Calculate difference between two {@link java.awt.Color Color}.
+	 * Gets the RGB values of the image, row by row. The backing array of an
+	 * integer RGB image is returned as is instead of being copied, so the
+	 * returned array must not be modified.
 	 * 
-	 * @param originalColor - the original {@link java.awt.Color Color}.
-	 * @param targetColor   - the target {@link java.awt.Color Color}.
-	 * @return difference between two {@link java.awt.Color Color}.
+	 * @param image - the image.
+	 * @return the RGB values. The alpha value is undefined.
 	 */
-	static double calculateDifference(final StitchColor originalColor, final StitchColor targetColor) {
-		double originalRed = originalColor.asFX().getRed();
-		double originalGreen = originalColor.asFX().getGreen();
-		double originalBlue = originalColor.asFX().getBlue();
-
-		double targetRed = targetColor.asFX().getRed();
-		double targetGreen = targetColor.asFX().getGreen(); 
-		double targetBlue = targetColor.asFX().getBlue();
-		
-		return calculateDifference(originalRed, originalGreen, originalBlue, targetRed, targetGreen, targetBlue);
-	}
-	
-	static double calculateDifference(final Color originalColor, final Color targetColor) {
-		final double originalRed = originalColor.getRed();
-		final double originalGreen = originalColor.getGreen();
-		final double originalBlue = originalColor.getBlue();
-
-		final double targetRed = targetColor.getRed();
-		final double targetGreen = targetColor.getGreen(); 
-		final double targetBlue = targetColor.getBlue();
-
-		return calculateDifference(originalRed, originalGreen, originalBlue, targetRed, targetGreen, targetBlue);
-	}
-
-	static StitchColor calculateRemoveString(final StitchImage stitchImage, final Map<String, Integer> usedColorCount) {
-		StitchColor uselessColor = null;
-		double difference = Double.MAX_VALUE;
-		final ArrayList<PixelList> list = new ArrayList<PixelList>(stitchImage.getPixelLists());
-		for (int i = 0; i < list.size(); i++) {
-			for (int j = i + 1; j < list.size(); j++) {
-				final StitchColor originalColor = list.get(i).getColor();
-				final StitchColor targetColor = list.get(j).getColor();
-
-				final double avgcolor = calculateDifference(originalColor, targetColor);
-				if (difference > avgcolor) {
-					final int orgcount = usedColorCount.get(list.get(i).getColor().getName());
-					final int tarcount = usedColorCount.get(list.get(j).getColor().getName());
-					difference = avgcolor;
-					if (orgcount >= tarcount) {
-						uselessColor = list.get(j).getColor();
-					} else {
-						uselessColor = list.get(i).getColor();
-					}
-				}
+	static int[] getRGB(final BufferedImage image) {
+		final WritableRaster raster = image.getRaster();
+		if ((image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB)
+				&& raster.getDataBuffer() instanceof DataBufferInt
+				&& raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+				&& raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0) {
+			final DataBufferInt dataBuffer = (DataBufferInt) raster.getDataBuffer();
+			final SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+			if (dataBuffer.getNumBanks() == 1 && dataBuffer.getOffset() == 0
+					&& sampleModel.getScanlineStride() == image.getWidth()) {
+				return dataBuffer.getData();
 			}
 		}
-		return uselessColor;
+		return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
 	}
 
 	/**
@@ -0,0 +1,222 @@
+package com.stitch.converter;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.stitch.converter.model.StitchColor;
+
+/**
+ * A palette searched by CIEDE2000 difference in CIELAB space.
+ * <p>
+ * The Lab values of the palette are computed once and the colors are sorted by
+ * lightness. CIEDE2000 is never smaller than the lightness difference divided
+ * by {@link CieLab#MAXIMUM_LIGHTNESS_WEIGHT}, so a search walks outward from
+ * the lightness of the query and stops once that bound exceeds the current
+ * answer. The two closest colors by CIE76 are compared first, so that
+ * {@link CieLab#squaredLowerBound a cheaper bound} can skip most colors inside
+ * the window before the full difference is computed.
+ *
+ * @author Reinvert
+ *
+ */
+final class LabPalette implements PaletteSearch {
+	private final StitchColor[] colors;
+	private final int[] order;
+	private final double[] lightness, a, b, chroma;
+	// The Lab values by palette index, as CieLab.toLabs returns them.
+	private final double[] labs;
+
+	/**
+	 * Creates the palette.
+	 *
+	 * @param colorList - the palette. The order of the list defines the palette
+	 *                  index of each color.
+	 */
+	LabPalette(final List<StitchColor> colorList) {
+		final int size = colorList.size();
+		colors = colorList.toArray(new StitchColor[size]);
+		final int[] rgb = new int[size];
+		for (int i = 0; i < size; i++) {
+			rgb[i] = colors[i].getRGB();
+		}
+		labs = CieLab.toLabs(rgb);
+		final Integer[] boxed = new Integer[size];
+		for (int i = 0; i < size; i++) {
+			boxed[i] = i;
+		}
+		Arrays.sort(boxed, Comparator.<Integer>comparingDouble(i -> labs[i * 3 + CieLab.L]).thenComparingInt(i -> i));
+		order = new int[size];
+		lightness = new double[size];
+		a = new double[size];
+		b = new double[size];
+		chroma = new double[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = boxed[i];
+			lightness[i] = labs[order[i] * 3 + CieLab.L];
+			a[i] = labs[order[i] * 3 + CieLab.A];
+			b[i] = labs[order[i] * 3 + CieLab.B];
+			chroma[i] = Math.sqrt(a[i] * a[i] + b[i] * b[i]);
+		}
+	}
+
+	/**
+	 * Gets the Lab values of the palette, to be compared by
+	 * {@link CieLab#difference(double[], int, double[], int)} without converting
+	 * the colors again.
+	 *
+	 * @return the Lab values by palette index. Must not be modified.
+	 */
+	double[] getLabs() {
+		return labs;
+	}
+
+	@Override
+	public StitchColor get(final int index) {
+		return colors[index];
+	}
+
+	@Override
+	public int size() {
+		return colors.length;
+	}
+
+	@Override
+	public int nearest(final int rgb) {
+		return nearest(rgb, null);
+	}
+
+	@Override
+	public int nearest(final int rgb, final boolean[] active) {
+		final Search search = new Search();
+		search.run(rgb, false, active);
+		return search.first;
+	}
+
+	@Override
+	public long nearestTwo(final int rgb) {
+		final Search search = new Search();
+		search.run(rgb, true, null);
+		return PaletteSearch.pack(search.first, search.second);
+	}
+
+	@Override
+	public Query newQuery() {
+		return new Search();
+	}
+
+	private int lowerBound(final double value) {
+		int low = 0, high = order.length;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (lightness[middle] < value) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * The state of a search, which is reset for every query so a thread can
+	 * reuse it.
+	 */
+	private final class Search implements Query {
+		private final double[] lab = new double[3];
+		private double chroma;
+		private boolean findSecond;
+		private boolean[] active;
+		private int first, second;
+		private double firstDifference, secondDifference;
+
+		@Override
+		public int nearest(final int rgb) {
+			run(rgb, false, null);
+			return first;
+		}
+
+		private boolean isActive(final int position) {
+			return active == null || active[order[position]];
+		}
+
+		private void run(final int rgb, final boolean findSecond, final boolean[] active) {
+			CieLab.toLab(rgb, lab);
+			chroma = Math.sqrt(lab[CieLab.A] * lab[CieLab.A] + lab[CieLab.B] * lab[CieLab.B]);
+			this.findSecond = findSecond;
+			this.active = active;
+			first = -1;
+			second = -1;
+			firstDifference = Double.MAX_VALUE;
+			secondDifference = Double.MAX_VALUE;
+
+			// The two closest colors by CIE76 are usually close by CIEDE2000 too, so they make the bounds tight early.
+			int firstSeed = -1, secondSeed = -1;
+			double firstSeedDistance = Double.MAX_VALUE, secondSeedDistance = Double.MAX_VALUE;
+			for (int position = 0; position < order.length; position++) {
+				if (!isActive(position)) {
+					continue;
+				}
+				final double deltaL = lightness[position] - lab[CieLab.L];
+				final double deltaA = a[position] - lab[CieLab.A];
+				final double deltaB = b[position] - lab[CieLab.B];
+				final double distance = deltaL * deltaL + deltaA * deltaA + deltaB * deltaB;
+				if (distance < firstSeedDistance) {
+					secondSeed = firstSeed;
+					secondSeedDistance = firstSeedDistance;
+					firstSeed = position;
+					firstSeedDistance = distance;
+				} else if (distance < secondSeedDistance) {
+					secondSeed = position;
+					secondSeedDistance = distance;
+				}
+			}
+			if (firstSeed != -1) {
+				offer(firstSeed);
+			}
+			if (secondSeed != -1) {
+				offer(secondSeed);
+			}
+
+			int upper = lowerBound(lab[CieLab.L]);
+			int lower = upper - 1;
+			while (lower >= 0 || upper < order.length) {
+				final double lowerGap = lower >= 0 ? lab[CieLab.L] - lightness[lower] : Double.MAX_VALUE;
+				final double upperGap = upper < order.length ? lightness[upper] - lab[CieLab.L] : Double.MAX_VALUE;
+				final int position = lowerGap <= upperGap ? lower-- : upper++;
+				final double worst = findSecond ? secondDifference : firstDifference;
+				// Every color further out has a larger lightness gap, so stop when it can't even tie.
+				if (Math.min(lowerGap, upperGap) / CieLab.MAXIMUM_LIGHTNESS_WEIGHT > worst) {
+					return;
+				}
+				if (position == firstSeed || position == secondSeed || !isActive(position) || CieLab.squaredLowerBound(lab[CieLab.L],
+						lab[CieLab.A], lab[CieLab.B], chroma, lightness[position], a[position], b[position],
+						LabPalette.this.chroma[position]) > worst * worst) {
+					continue;
+				}
+				offer(position);
+			}
+		}
+
+		private void offer(final int position) {
+			final int index = order[position];
+			final double difference = CieLab.deltaE2000(lab[CieLab.L], lab[CieLab.A], lab[CieLab.B],
+					lightness[position], a[position], b[position]);
+			if (isCloser(difference, index, firstDifference, first)) {
+				second = first;
+				secondDifference = firstDifference;
+				first = index;
+				firstDifference = difference;
+			} else if (findSecond && isCloser(difference, index, secondDifference, second)) {
+				second = index;
+				secondDifference = difference;
+			}
+		}
+	}
+
+	private static boolean isCloser(final double difference, final int index, final double currentDifference,
+			final int current) {
+		return difference < currentDifference
+				|| (difference == currentDifference && (current == -1 || index < current));
+	}
+}
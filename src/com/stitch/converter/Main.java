@@ -1,6 +1,8 @@
 package com.stitch.converter;
 
 import java.io.File;
+import java.util.concurrent.CompletableFuture;
+
 import com.stitch.converter.model.StitchImage;
 import com.stitch.converter.view.OverviewController;
 import com.stitch.converter.view.ProgressWindow;
@@ -96,4 +98,22 @@ public class Main extends Application {
         progressWindow.show();
         new Thread(builder.setMode(mode).addListener(listener).build()).start();
     }
+
+    /**
+     * Runs the task on a new thread while the progress window shows the message.
+     *
+     * @param message - the message.
+     * @param task    - the task.
+     * @return the completion of the task, after the window is hidden.
+     */
+    public CompletableFuture<Void> runWithProgress(final String message, final Runnable task) {
+        final ProgressWindow window = new ProgressWindow(primaryStage);
+        window.updateProgress(-1d, message);
+        window.show();
+        return CompletableFuture.runAsync(task, runnable -> {
+            final Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            thread.start();
+        }).whenComplete((result, throwable) -> window.hide());
+    }
 }
@@ -0,0 +1,249 @@
+package com.stitch.converter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import com.stitch.converter.model.StitchColor;
+
+/**
+ * A lookup table holding the closest and second closest palette index of every
+ * 24-bit RGB color.
+ * <p>
+ * The table is built once per palette and metric, and stored in a cache file
+ * named by a hash of both, so a changed color table gets a new file. Later
+ * runs memory-map the file instead of rebuilding it. Every entry is exactly the
+ * answer {@link PaletteTree} gives for the same color.
+ *
+ * @author Reinvert
+ *
+ */
+final class PaletteLookupTable {
+	private static final int MAGIC = 0x53434C54, VERSION = 2;
+	private static final int HEADER_SIZE = 16;
+	private static final int SIZE = 1 << 24;
+	private static final int NONE = 0xFFFF;
+
+	private static final int BLOCK_BITS = 3, BLOCK_SIZE = 1 << BLOCK_BITS, BLOCKS = 256 / BLOCK_SIZE;
+
+	private final IntBuffer table;
+
+	private PaletteLookupTable(final IntBuffer table) {
+		this.table = table;
+	}
+
+	/**
+	 * Gets the table entry of the color. Use {@link #first(int) first} and
+	 * {@link #second(int) second} to read the palette indices.
+	 *
+	 * @param rgb - the RGB value. The alpha value is ignored.
+	 * @return the packed palette indices.
+	 */
+	int lookup(final int rgb) {
+		return table.get(rgb & 0xFFFFFF);
+	}
+
+	static int first(final int entry) {
+		final int index = entry & NONE;
+		return index == NONE ? -1 : index;
+	}
+
+	static int second(final int entry) {
+		final int index = entry >>> 16;
+		return index == NONE ? -1 : index;
+	}
+
+	/**
+	 * Loads the table of the palette from the cache directory, building and
+	 * storing it first if no valid cache file exists.
+	 *
+	 * @param directory - the cache directory.
+	 * @param colorList - the palette.
+	 * @param metric    - the metric to compare colors with.
+	 * @return the lookup table.
+	 * @throws IOException              occurs when the cache file can't read.
+	 * @throws IllegalArgumentException occurs when the palette is too large to
+	 *                                  index.
+	 */
+	static PaletteLookupTable load(final File directory, final List<StitchColor> colorList, final ColorMetric metric)
+			throws IOException {
+		if (colorList.size() >= NONE) {
+			throw new IllegalArgumentException("Palette is too large for lookup table: " + colorList.size());
+		}
+		final Path file = directory.toPath().resolve("palette-" + hash(colorList, metric) + ".lut");
+		if (Files.exists(file)) {
+			final PaletteLookupTable table = map(file, colorList.size());
+			if (table != null) {
+				return table;
+			}
+		}
+
+		final int[] values = build(colorList, metric);
+		try {
+			store(file, values, colorList.size());
+		} catch (final IOException e) {
+			LogPrinter.print(e);
+		}
+		return new PaletteLookupTable(IntBuffer.wrap(values));
+	}
+
+	private static PaletteLookupTable map(final Path file, final int paletteSize) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() != HEADER_SIZE + SIZE * 4L) {
+				return null;
+			}
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			if (channel.read(header, 0) != HEADER_SIZE) {
+				return null;
+			}
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != paletteSize) {
+				return null;
+			}
+			// The mapping stays valid after the channel is closed.
+			return new PaletteLookupTable(
+					channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, SIZE * 4L).asIntBuffer());
+		}
+	}
+
+	private static void store(final Path file, final int[] values, final int paletteSize) throws IOException {
+		Files.createDirectories(file.getParent());
+		final Path temporary = Files.createTempFile(file.getParent(), "palette-", ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+				final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION).putInt(paletteSize).putInt(0).flip();
+				write(channel, header);
+				final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+				for (int offset = 0; offset < values.length; offset += buffer.capacity() / 4) {
+					buffer.clear();
+					buffer.asIntBuffer().put(values, offset, Math.min(buffer.capacity() / 4, values.length - offset));
+					write(channel, buffer);
+				}
+				channel.force(true);
+			}
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	private static void write(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static String hash(final List<StitchColor> colorList, final ColorMetric metric) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update((metric.getName() + VERSION).getBytes(StandardCharsets.UTF_8));
+			for (final StitchColor color : colorList) {
+				digest.update(String.valueOf(color.getName()).getBytes(StandardCharsets.UTF_8));
+				digest.update(new byte[] { 0, (byte) color.getRed(), (byte) color.getGreen(), (byte) color.getBlue() });
+			}
+			final StringBuilder builder = new StringBuilder();
+			final byte[] bytes = digest.digest();
+			for (int i = 0; i < 16; i++) {
+				builder.append(String.format("%02x", bytes[i]));
+			}
+			return builder.toString();
+		} catch (final NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/*
+	 * The color cube is split into blocks. A palette color can only be the first
+	 * or second closest color of a point inside a block if its distance to the
+	 * block is within the second smallest farthest distance, so each point only
+	 * compares the few colors passing that test.
+	 */
+	private static int[] build(final List<StitchColor> colorList, final ColorMetric metric) {
+		final int size = colorList.size();
+		final int[][] channels = new int[3][size];
+		final int[] rgb = new int[size];
+		for (int i = 0; i < size; i++) {
+			final StitchColor color = colorList.get(i);
+			channels[0][i] = color.getRed();
+			channels[1][i] = color.getGreen();
+			channels[2][i] = color.getBlue();
+			rgb[i] = color.getRGB();
+		}
+		final int[] values = new int[SIZE];
+		IntStream.range(0, BLOCKS * BLOCKS * BLOCKS).parallel()
+				.forEach(block -> fillBlock(block, channels, rgb, metric, values));
+		return values;
+	}
+
+	private static void fillBlock(final int block, final int[][] channels, final int[] rgb, final ColorMetric metric,
+			final int[] values) {
+		final int size = channels[0].length;
+		final int[] low = { (block / (BLOCKS * BLOCKS)) << BLOCK_BITS, ((block / BLOCKS) % BLOCKS) << BLOCK_BITS,
+				(block % BLOCKS) << BLOCK_BITS };
+
+		long firstFarthest = Long.MAX_VALUE, secondFarthest = Long.MAX_VALUE;
+		final long[] nearestDistance = new long[size];
+		for (int i = 0; i < size; i++) {
+			long near = 0, far = 0;
+			for (int channel = 0; channel < 3; channel++) {
+				final int value = channels[channel][i];
+				final int high = low[channel] + BLOCK_SIZE - 1;
+				final int gap = value < low[channel] ? low[channel] - value : value > high ? value - high : 0;
+				final int span = Math.max(Math.abs(value - low[channel]), Math.abs(value - high));
+				near += metric.channelMinimum(channel, gap);
+				far += metric.channelMaximum(channel, span);
+			}
+			nearestDistance[i] = near;
+			if (far < firstFarthest) {
+				secondFarthest = firstFarthest;
+				firstFarthest = far;
+			} else if (far < secondFarthest) {
+				secondFarthest = far;
+			}
+		}
+		final long bound = size == 1 ? firstFarthest : secondFarthest;
+		final int[] candidates = new int[size];
+		int candidateCount = 0;
+		for (int i = 0; i < size; i++) {
+			if (nearestDistance[i] <= bound) {
+				candidates[candidateCount++] = i;
+			}
+		}
+
+		for (int red = low[0]; red < low[0] + BLOCK_SIZE; red++) {
+			for (int green = low[1]; green < low[1] + BLOCK_SIZE; green++) {
+				for (int blue = low[2]; blue < low[2] + BLOCK_SIZE; blue++) {
+					final int color = (red << 16) | (green << 8) | blue;
+					int first = NONE, second = NONE;
+					int firstDifference = Integer.MAX_VALUE, secondDifference = Integer.MAX_VALUE;
+					for (int c = 0; c < candidateCount; c++) {
+						final int index = candidates[c];
+						final int difference = metric.distance(color, rgb[index]);
+						if (difference < firstDifference) {
+							second = first;
+							secondDifference = firstDifference;
+							first = index;
+							firstDifference = difference;
+						} else if (difference < secondDifference) {
+							second = index;
+							secondDifference = difference;
+						}
+					}
+					values[color] = (second << 16) | first;
+				}
+			}
+		}
+	}
+}
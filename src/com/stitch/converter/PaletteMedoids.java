@@ -0,0 +1,299 @@
+package com.stitch.converter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
+
+import com.stitch.converter.model.StitchColor;
+
+/**
+ * Selects the palette colors that represent an image best, by k-medoids
+ * clustering of the colors of the image with the medoids restricted to the
+ * palette.
+ * <p>
+ * The cost of a selection is the sum, over all pixels, of the distance to the
+ * closest selected color. Images of many distinct colors are clustered on
+ * weighted samples of their histogram, and the selection of the lowest cost on
+ * the whole histogram is kept. Each sample is clustered by a greedy build
+ * followed by the best improving swap of a selected and an unselected palette
+ * color until no swap lowers the cost. Every swap is priced for all selected
+ * colors at once from the closest and second closest selected color of every
+ * sample color.
+ *
+ * @author Reinvert
+ *
+ */
+final class PaletteMedoids {
+	private static final int SAMPLE_SIZE = 1024, SAMPLE_COUNT = 5, MAXIMUM_SWAPS = 1000;
+
+	private final int[] palette;
+	private final ColorMetric metric;
+	// The Lab values of the palette if the metric is CIEDE2000, so only the image colors are converted.
+	private final double[] paletteLabs;
+	private final int[] colors, weights;
+
+	private PaletteMedoids(final List<StitchColor> palette, final int[] pixels, final ColorMetric metric) {
+		this.palette = new int[palette.size()];
+		for (int index = 0; index < this.palette.length; index++) {
+			this.palette[index] = palette.get(index).getRGB();
+		}
+		this.metric = metric;
+		paletteLabs = metric == ColorMetric.Standard.CIEDE2000 ? CieLab.toLabs(this.palette) : null;
+		final ColorHistogram histogram = new ColorHistogram(Math.min(pixels.length, 1 << 16));
+		for (final int rgb : pixels) {
+			histogram.add(rgb);
+		}
+		colors = new int[histogram.size()];
+		weights = new int[histogram.size()];
+		for (int id = 0; id < colors.length; id++) {
+			colors[id] = histogram.getColor(id);
+			weights[id] = histogram.getCount(id);
+		}
+	}
+
+	/**
+	 * Selects the palette colors.
+	 *
+	 * @param palette - the palette.
+	 * @param pixels  - the RGB values of the image.
+	 * @param limit   - the number of colors to select.
+	 * @param metric  - the metric to compare colors with.
+	 * @param threads - the number of threads to use.
+	 * @return the selected colors, in palette order, or the whole palette if it
+	 *         has no more colors than the limit.
+	 */
+	static List<StitchColor> select(final List<StitchColor> palette, final int[] pixels, final int limit,
+			final ColorMetric metric, final int threads) {
+		if (limit <= 0 || limit >= palette.size()) {
+			return palette;
+		}
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			// Parallel streams started inside the pool run on its workers too.
+			final boolean[] selected = pool.invoke(ForkJoinTask.adapt(
+					() -> new PaletteMedoids(palette, pixels, metric).select(limit)));
+			final List<StitchColor> output = new ArrayList<>();
+			for (int index = 0; index < selected.length; index++) {
+				if (selected[index]) {
+					output.add(palette.get(index));
+				}
+			}
+			return output;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private boolean[] select(final int limit) {
+		if (colors.length <= SAMPLE_SIZE) {
+			return toSelection(new Sample(colors, weights).cluster(null, limit));
+		}
+		final Random random = new Random(colors.length);
+		int[] best = null;
+		long bestCost = Long.MAX_VALUE;
+		for (int sample = 0; sample < SAMPLE_COUNT; sample++) {
+			// Later samples refine the best selection so far instead of building a new one.
+			final int[] medoids = drawSample(random).cluster(best, limit);
+			final long cost = cost(medoids);
+			if (cost < bestCost) {
+				best = medoids;
+				bestCost = cost;
+			}
+		}
+		return toSelection(best);
+	}
+
+	private boolean[] toSelection(final int[] medoids) {
+		final boolean[] selected = new boolean[palette.length];
+		for (final int medoid : medoids) {
+			selected[medoid] = true;
+		}
+		return selected;
+	}
+
+	/**
+	 * Draws distinct colors of the histogram with a chance growing with their
+	 * count, by keeping the colors of the largest random key u^(1 / count).
+	 */
+	private Sample drawSample(final Random random) {
+		final long[] keys = new long[colors.length];
+		for (int id = 0; id < colors.length; id++) {
+			final double key = Math.pow(random.nextDouble(), 1d / weights[id]);
+			// The key is between 0 and 1, so its bits sort like the value.
+			keys[id] = (Double.doubleToLongBits(key) & ~0xFFFFFFL) | id;
+		}
+		Arrays.sort(keys);
+		final int[] sampleColors = new int[SAMPLE_SIZE], sampleWeights = new int[SAMPLE_SIZE];
+		for (int i = 0; i < SAMPLE_SIZE; i++) {
+			final int id = (int) (keys[keys.length - 1 - i] & 0xFFFFFFL);
+			sampleColors[i] = colors[id];
+			sampleWeights[i] = weights[id];
+		}
+		return new Sample(sampleColors, sampleWeights);
+	}
+
+	/**
+	 * Assigns every color of the histogram to its closest medoid and sums the
+	 * distances.
+	 */
+	private long cost(final int[] medoids) {
+		return IntStream.range(0, colors.length).parallel().mapToLong(id -> {
+			final double[] lab = toLab(colors[id]);
+			int nearest = Integer.MAX_VALUE;
+			for (final int medoid : medoids) {
+				nearest = Math.min(nearest, distance(colors[id], lab, medoid));
+			}
+			return (long) nearest * weights[id];
+		}).sum();
+	}
+
+	/**
+	 * Converts the color to CIELAB if the metric is CIEDE2000.
+	 *
+	 * @return the Lab values, or null for the other metrics.
+	 */
+	private double[] toLab(final int rgb) {
+		return paletteLabs != null ? CieLab.toLabs(new int[] { rgb }) : null;
+	}
+
+	/**
+	 * Measures the distance from a color to a palette color.
+	 *
+	 * @param rgb       - the color.
+	 * @param lab       - the Lab values of the color from {@link #toLab(int)}.
+	 * @param candidate - the palette index.
+	 */
+	private int distance(final int rgb, final double[] lab, final int candidate) {
+		return lab != null ? CieLab.difference(lab, 0, paletteLabs, candidate) : metric.distance(rgb, palette[candidate]);
+	}
+
+	private final class Sample {
+		private final int size;
+		private final int[] weights;
+		// The distance from every sample color to every palette color, row by row.
+		private final int[] distances;
+
+		private Sample(final int[] colors, final int[] weights) {
+			this.size = colors.length;
+			this.weights = weights;
+			distances = new int[size * palette.length];
+			IntStream.range(0, size).parallel().forEach(point -> {
+				final double[] lab = toLab(colors[point]);
+				for (int candidate = 0, offset = point * palette.length; candidate < palette.length; candidate++) {
+					distances[offset + candidate] = PaletteMedoids.this.distance(colors[point], lab, candidate);
+				}
+			});
+		}
+
+		private int distance(final int point, final int candidate) {
+			return distances[point * palette.length + candidate];
+		}
+
+		private int[] cluster(final int[] initial, final int limit) {
+			final int[] medoids = initial != null ? initial.clone() : build(limit);
+			final boolean[] isMedoid = new boolean[palette.length];
+			for (final int medoid : medoids) {
+				isMedoid[medoid] = true;
+			}
+			final int[] nearest = new int[size], nearestDistance = new int[size], secondDistance = new int[size];
+			for (int swap = 0; swap < MAXIMUM_SWAPS; swap++) {
+				assign(medoids, nearest, nearestDistance, secondDistance);
+				/*
+				 * Every candidate is priced against every medoid at once: the change
+				 * of a point doesn't depend on the medoid removed unless it is the
+				 * nearest one.
+				 */
+				final long[] best = IntStream.range(0, palette.length).parallel()
+						.filter(candidate -> !isMedoid[candidate])
+						.mapToObj(candidate -> price(candidate, medoids.length, nearest, nearestDistance, secondDistance))
+						.reduce((first, second) -> first[0] <= second[0] ? first : second).orElse(null);
+				if (best == null || best[0] >= 0) {
+					break;
+				}
+				isMedoid[medoids[(int) best[1]]] = false;
+				medoids[(int) best[1]] = (int) best[2];
+				isMedoid[(int) best[2]] = true;
+			}
+			return medoids;
+		}
+
+		/**
+		 * Adds the palette color that lowers the cost the most, until the limit is
+		 * reached.
+		 */
+		private int[] build(final int limit) {
+			final int[] medoids = new int[limit];
+			final boolean[] isMedoid = new boolean[palette.length];
+			final int[] nearestDistance = new int[size];
+			Arrays.fill(nearestDistance, Integer.MAX_VALUE);
+			for (int count = 0; count < limit; count++) {
+				final long[] best = IntStream.range(0, palette.length).parallel()
+						.filter(candidate -> !isMedoid[candidate]).mapToObj(candidate -> {
+							long cost = 0;
+							for (int point = 0; point < size; point++) {
+								cost += (long) Math.min(nearestDistance[point], distance(point, candidate)) * weights[point];
+							}
+							return new long[] { cost, candidate };
+						}).reduce((first, second) -> first[0] <= second[0] ? first : second).get();
+				final int medoid = (int) best[1];
+				medoids[count] = medoid;
+				isMedoid[medoid] = true;
+				for (int point = 0; point < size; point++) {
+					nearestDistance[point] = Math.min(nearestDistance[point], distance(point, medoid));
+				}
+			}
+			return medoids;
+		}
+
+		private void assign(final int[] medoids, final int[] nearest, final int[] nearestDistance,
+				final int[] secondDistance) {
+			IntStream.range(0, size).parallel().forEach(point -> {
+				int first = -1, firstDistance = Integer.MAX_VALUE, second = Integer.MAX_VALUE;
+				for (int i = 0; i < medoids.length; i++) {
+					final int distance = distance(point, medoids[i]);
+					if (distance < firstDistance) {
+						second = firstDistance;
+						first = i;
+						firstDistance = distance;
+					} else if (distance < second) {
+						second = distance;
+					}
+				}
+				nearest[point] = first;
+				nearestDistance[point] = firstDistance;
+				secondDistance[point] = second;
+			});
+		}
+
+		/**
+		 * Finds the medoid to replace by the candidate.
+		 *
+		 * @return the change of the cost, the position of the medoid and the
+		 *         candidate.
+		 */
+		private long[] price(final int candidate, final int medoidCount, final int[] nearest,
+				final int[] nearestDistance, final int[] secondDistance) {
+			final long[] change = new long[medoidCount];
+			long shared = 0;
+			for (int point = 0; point < size; point++) {
+				final long distance = distance(point, candidate);
+				final long gain = Math.min(distance - nearestDistance[point], 0);
+				shared += gain * weights[point];
+				// Removing the nearest medoid sends the point to the candidate or its second medoid.
+				change[nearest[point]] += (Math.min(distance, secondDistance[point]) - nearestDistance[point] - gain)
+						* weights[point];
+			}
+			int position = 0;
+			for (int i = 1; i < medoidCount; i++) {
+				if (change[i] < change[position]) {
+					position = i;
+				}
+			}
+			return new long[] { shared + change[position], position, candidate };
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.stitch.converter;
+
+import java.util.List;
+
+import com.stitch.converter.model.StitchColor;
+
+/**
+ * Finds the closest colors of a palette.
+ * <p>
+ * Implementations are immutable once built, so one instance can be shared by
+ * every converter thread. Ties are resolved toward the lower palette index.
+ *
+ * @author Reinvert
+ *
+ */
+interface PaletteSearch {
+	/**
+	 * Creates the search suited to the metric.
+	 *
+	 * @param colorList - the palette. The order of the list defines the palette
+	 *                  index of each color.
+	 * @param metric    - the metric to compare colors with.
+	 * @return the search.
+	 */
+	static PaletteSearch create(final List<StitchColor> colorList, final ColorMetric metric) {
+		if (metric == ColorMetric.Standard.CIEDE2000) {
+			return new LabPalette(colorList);
+		}
+		return new PaletteTree(colorList, metric);
+	}
+
+	/**
+	 * Gets the palette color at the index.
+	 *
+	 * @param index - the palette index.
+	 * @return the color.
+	 */
+	StitchColor get(int index);
+
+	/**
+	 * Gets the number of colors in the palette.
+	 *
+	 * @return the palette size.
+	 */
+	int size();
+
+	/**
+	 * Finds the palette index closest to the color.
+	 *
+	 * @param rgb - the RGB value. The alpha value is ignored.
+	 * @return the palette index, or -1 if the palette is empty.
+	 */
+	int nearest(int rgb);
+
+	/**
+	 * Finds the palette index closest to the color among the active ones.
+	 *
+	 * @param rgb    - the RGB value. The alpha value is ignored.
+	 * @param active - whether each palette index may be returned.
+	 * @return the palette index, or -1 if no index is active.
+	 */
+	int nearest(int rgb, boolean[] active);
+
+	/**
+	 * Finds the closest and second closest palette indices of the color.
+	 *
+	 * @param rgb - the RGB value. The alpha value is ignored.
+	 * @return both indices packed by {@link #pack(int, int) pack}. Missing
+	 *         indices are -1.
+	 */
+	long nearestTwo(int rgb);
+
+	/**
+	 * Creates a query for one thread. A query keeps its state between searches,
+	 * so searching through it allocates nothing.
+	 *
+	 * @return the query, which must not be shared between threads.
+	 */
+	Query newQuery();
+
+	static long pack(final int first, final int second) {
+		return ((long) second << 32) | (first & 0xFFFFFFFFL);
+	}
+
+	static int first(final long packed) {
+		return (int) packed;
+	}
+
+	static int second(final long packed) {
+		return (int) (packed >> 32);
+	}
+
+	/**
+	 * Searches a palette again and again from one thread.
+	 */
+	interface Query {
+		/**
+		 * Finds the palette index closest to the color.
+		 *
+		 * @param rgb - the RGB value. The alpha value is ignored.
+		 * @return the palette index, or -1 if the palette is empty.
+		 */
+		int nearest(int rgb);
+	}
+}
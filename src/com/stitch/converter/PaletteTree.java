@@ -0,0 +1,210 @@
+package com.stitch.converter;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.stitch.converter.model.StitchColor;
+
+/**
+ * A k-d tree over the colors of a palette, answering nearest and second
+ * nearest queries.
+ * <p>
+ * The tree is immutable once built, so one instance can be shared by every
+ * converter thread. Distances are computed by a {@link ColorMetric} on packed
+ * RGB values and ties are resolved toward the lower palette index, so every
+ * answer is exactly the one a linear scan over the palette would give.
+ *
+ * @author Reinvert
+ *
+ */
+final class PaletteTree implements PaletteSearch {
+	private static final int RED = ColorMetric.RED, GREEN = ColorMetric.GREEN, BLUE = ColorMetric.BLUE;
+
+	private final StitchColor[] colors;
+	private final ColorMetric metric;
+	private final int[] rgb;
+	private final int[][] components;
+	private final int[] order;
+	private final byte[] axis;
+
+	/**
+	 * Builds the tree.
+	 *
+	 * @param colorList - the palette. The order of the list defines the palette
+	 *                  index of each color.
+	 * @param metric    - the metric to compare colors with.
+	 */
+	PaletteTree(final List<StitchColor> colorList, final ColorMetric metric) {
+		final int size = colorList.size();
+		this.metric = metric;
+		colors = colorList.toArray(new StitchColor[size]);
+		rgb = new int[size];
+		components = new int[3][size];
+		for (int i = 0; i < size; i++) {
+			components[RED][i] = colors[i].getRed();
+			components[GREEN][i] = colors[i].getGreen();
+			components[BLUE][i] = colors[i].getBlue();
+			rgb[i] = colors[i].getRGB();
+		}
+		final Integer[] boxed = new Integer[size];
+		for (int i = 0; i < size; i++) {
+			boxed[i] = i;
+		}
+		axis = new byte[size];
+		build(boxed, 0, size);
+		order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = boxed[i];
+		}
+	}
+
+	private void build(final Integer[] boxed, final int from, final int to) {
+		if (to - from <= 0) {
+			return;
+		}
+		final int splitAxis = widestAxis(boxed, from, to);
+		final int[] values = components[splitAxis];
+		Arrays.sort(boxed, from, to, Comparator.<Integer>comparingInt(i -> values[i]).thenComparingInt(i -> i));
+		final int middle = (from + to) >>> 1;
+		axis[middle] = (byte) splitAxis;
+		build(boxed, from, middle);
+		build(boxed, middle + 1, to);
+	}
+
+	private int widestAxis(final Integer[] boxed, final int from, final int to) {
+		int widest = RED;
+		int widestSpread = -1;
+		for (int currentAxis = RED; currentAxis <= BLUE; currentAxis++) {
+			int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+			for (int i = from; i < to; i++) {
+				final int value = components[currentAxis][boxed[i]];
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+			if (max - min > widestSpread) {
+				widestSpread = max - min;
+				widest = currentAxis;
+			}
+		}
+		return widest;
+	}
+
+	@Override
+	public StitchColor get(final int index) {
+		return colors[index];
+	}
+
+	@Override
+	public int size() {
+		return colors.length;
+	}
+
+	@Override
+	public int nearest(final int rgb) {
+		return nearest(rgb, null);
+	}
+
+	@Override
+	public int nearest(final int rgb, final boolean[] active) {
+		final Search search = new Search();
+		search.run(rgb, false, active);
+		return search.first;
+	}
+
+	@Override
+	public long nearestTwo(final int rgb) {
+		final Search search = new Search();
+		search.run(rgb, true, null);
+		return PaletteSearch.pack(search.first, search.second);
+	}
+
+	@Override
+	public Query newQuery() {
+		return new Search();
+	}
+
+	/**
+	 * The state of a search, which is reset for every query so a thread can
+	 * reuse it.
+	 */
+	private final class Search implements Query {
+		private final int[] queryComponents = new int[3];
+		private int query;
+		private boolean findSecond;
+		private boolean[] active;
+		private int first, second;
+		private int firstDifference, secondDifference;
+
+		@Override
+		public int nearest(final int rgb) {
+			run(rgb, false, null);
+			return first;
+		}
+
+		private void run(final int rgb, final boolean findSecond, final boolean[] active) {
+			query = rgb;
+			queryComponents[RED] = (rgb >> 16) & 0xFF;
+			queryComponents[GREEN] = (rgb >> 8) & 0xFF;
+			queryComponents[BLUE] = rgb & 0xFF;
+			this.findSecond = findSecond;
+			this.active = active;
+			first = -1;
+			second = -1;
+			firstDifference = Integer.MAX_VALUE;
+			secondDifference = Integer.MAX_VALUE;
+			visit(0, order.length);
+		}
+
+		private void visit(final int from, final int to) {
+			if (to - from <= 0) {
+				return;
+			}
+			final int middle = (from + to) >>> 1;
+			final int index = order[middle];
+			// An inactive color still splits the space, it just can't be the answer.
+			if (active == null || active[index]) {
+				offer(index, metric.distance(query, rgb[index]));
+			}
+
+			final int splitAxis = axis[middle];
+			final int planeDifference = queryComponents[splitAxis] - components[splitAxis][index];
+			final boolean lowerFirst = planeDifference <= 0;
+			if (lowerFirst) {
+				visit(from, middle);
+			} else {
+				visit(middle + 1, to);
+			}
+			// Only skip the far side when it cannot even tie, so ties still resolve by index.
+			if (metric.channelMinimum(splitAxis, planeDifference) <= worst()) {
+				if (lowerFirst) {
+					visit(middle + 1, to);
+				} else {
+					visit(from, middle);
+				}
+			}
+		}
+
+		private int worst() {
+			return findSecond ? secondDifference : firstDifference;
+		}
+
+		private void offer(final int index, final int difference) {
+			if (isCloser(difference, index, firstDifference, first)) {
+				second = first;
+				secondDifference = firstDifference;
+				first = index;
+				firstDifference = difference;
+			} else if (findSecond && isCloser(difference, index, secondDifference, second)) {
+				second = index;
+				secondDifference = difference;
+			}
+		}
+
+		private boolean isCloser(final int difference, final int index, final int currentDifference,
+				final int current) {
+			return difference < currentDifference
+					|| (difference == currentDifference && (current == -1 || index < current));
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package com.stitch.converter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.stitch.converter.model.PatternFile;
+import com.stitch.converter.model.PatternJournal;
+import com.stitch.converter.model.StitchImage;
+
+/**
+ * Saves patterns on a background thread, one at a time and in the order they
+ * are asked for.
+ * <p>
+ * Every save takes a snapshot of the pattern first, so the pattern can be
+ * edited while it is written. A save asked for while an earlier save of the
+ * same file is still waiting replaces the snapshot of the earlier one, so only
+ * the latest state of the file is written and both are completed together.
+ * <p>
+ * Small edits of a saved pattern are appended to its {@link PatternJournal}
+ * instead, in the same order as the saves. Once the journal holds many edits,
+ * the pattern is saved whole in the background, which empties the journal.
+ *
+ * @author Reinvert
+ *
+ */
+public final class PatternSaver {
+	private static final int COMPACT_EDITS = 256;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+		final Thread thread = new Thread(runnable, "PatternSaver");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// The saves that are waiting, by file.
+	private final HashMap<Path, Request> pending = new HashMap<>();
+	// The number of edits in the journal of every file, counting the edits still waiting.
+	private final ConcurrentHashMap<Path, Integer> journalSizes = new ConcurrentHashMap<>();
+
+	/**
+	 * Saves the pattern as it is now.
+	 *
+	 * @param file       - the file.
+	 * @param image      - the pattern.
+	 * @param isDeflated - whether the file is deflated.
+	 * @return the completion of the save, which fails with the
+	 *         {@link IOException} if the file can't be written.
+	 */
+	public CompletableFuture<Void> save(final File file, final StitchImage image, final boolean isDeflated) {
+		final StitchImage snapshot = image.snapshot();
+		final Path path = file.toPath().toAbsolutePath();
+		journalSizes.put(path, 0);
+		synchronized (pending) {
+			final Request waiting = pending.get(path);
+			if (waiting != null) {
+				waiting.snapshot = snapshot;
+				waiting.isDeflated = isDeflated;
+				return waiting.future;
+			}
+			final Request request = new Request(snapshot, isDeflated);
+			pending.put(path, request);
+			executor.execute(() -> write(path, request));
+			return request.future;
+		}
+	}
+
+	/**
+	 * Appends the edit to the journal of the pattern file, and saves the
+	 * pattern whole if the journal holds many edits.
+	 *
+	 * @param file       - the pattern file, which must exist and hold the
+	 *                   pattern as it was before the edit, apart from the
+	 *                   journal.
+	 * @param image      - the pattern, after the edit.
+	 * @param edit       - the edit.
+	 * @param isDeflated - whether the file is deflated if it is saved whole.
+	 * @return the completion of the edit, which fails with the
+	 *         {@link IOException} if the journal can't be written.
+	 */
+	public CompletableFuture<Void> journal(final File file, final StitchImage image, final PatternJournal.Edit edit,
+			final boolean isDeflated) {
+		final Path path = file.toPath().toAbsolutePath();
+		final CompletableFuture<Void> future = new CompletableFuture<>();
+		executor.execute(() -> {
+			try {
+				// The journal may hold edits from before this saver was started.
+				journalSizes.merge(path, PatternJournal.append(path.toFile(), edit), Math::max);
+				future.complete(null);
+			} catch (IOException | RuntimeException e) {
+				future.completeExceptionally(e);
+			}
+		});
+		if (journalSizes.merge(path, 1, Integer::sum) >= COMPACT_EDITS) {
+			save(file, image, isDeflated).exceptionally(throwable -> {
+				// The edits stay in the journal, which is compacted again after more edits.
+				LogPrinter.print(throwable);
+				return null;
+			});
+		}
+		return future;
+	}
+
+	/**
+	 * Gets the completion of every save and edit asked for before. They are
+	 * written on a daemon thread, so the application must wait for them before
+	 * it exits.
+	 *
+	 * @return the completion, which never fails; failed saves and edits are
+	 *         reported by their own completions.
+	 */
+	public CompletableFuture<Void> flush() {
+		return CompletableFuture.runAsync(() -> {
+		}, executor);
+	}
+
+	private void write(final Path path, final Request request) {
+		final StitchImage snapshot;
+		final boolean isDeflated;
+		synchronized (pending) {
+			pending.remove(path);
+			snapshot = request.snapshot;
+			isDeflated = request.isDeflated;
+		}
+		try {
+			PatternFile.save(path.toFile(), snapshot, isDeflated);
+			// Edits written before this save are in the snapshot, and edits after it start a new journal.
+			PatternJournal.reset(path.toFile());
+			// Appends queued before this save may have counted the old journal after save() emptied the count.
+			journalSizes.put(path, 0);
+			request.future.complete(null);
+		} catch (IOException | RuntimeException e) {
+			request.future.completeExceptionally(e);
+		}
+	}
+
+	private static final class Request {
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+		private StitchImage snapshot;
+		private boolean isDeflated;
+
+		private Request(final StitchImage snapshot, final boolean isDeflated) {
+			this.snapshot = snapshot;
+			this.isDeflated = isDeflated;
+		}
+	}
+}
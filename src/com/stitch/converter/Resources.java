@@ -2,7 +2,6 @@ package com.stitch.converter;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
 import javafx.application.Platform;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Alert.AlertType;
@@ -84,16 +83,6 @@ public class Resources {
         }
     }
 
-    public static void writeObject(final File file, final Object object) {
-        CompletableFuture.runAsync(() -> {
-            try (FileOutputStream fos = new FileOutputStream(file); ObjectOutputStream oos = new ObjectOutputStream(fos)) {
-                oos.writeObject(object);
-            } catch (IOException e) {
-                LogPrinter.print(e);
-            }
-        });
-    }
-
     public static boolean writeText(final File file, final String text) throws IOException {
         try (PrintWriter printWriter = new PrintWriter(file)) {
             printWriter.println(text);
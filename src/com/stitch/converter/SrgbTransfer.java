@@ -0,0 +1,74 @@
+package com.stitch.converter;
+
+/**
+ * Converts between gamma-encoded sRGB channel values and linear light by
+ * table, so the per-pixel loops do no transcendental math.
+ * <p>
+ * Decoding is exact, as there are only 256 encoded values. Encoding
+ * interpolates between 65536 samples of the curve, which keeps the error
+ * around the precision of a float.
+ *
+ * @author Reinvert
+ *
+ */
+final class SrgbTransfer {
+	private static final int ENCODE_STEPS = 1 << 16;
+
+	private static final double[] DECODE = new double[256];
+	private static final float[] ENCODE = new float[ENCODE_STEPS + 1];
+
+	static {
+		for (int value = 0; value < 256; value++) {
+			DECODE[value] = toLinear(value / 255d);
+		}
+		for (int step = 0; step <= ENCODE_STEPS; step++) {
+			ENCODE[step] = (float) (toGamma((double) step / ENCODE_STEPS) * 255d);
+		}
+	}
+
+	/**
+	 * Decodes a channel value.
+	 *
+	 * @param value - the encoded value, between 0 and 255.
+	 * @return the linear value, between 0 and 1.
+	 */
+	static double decode(final int value) {
+		return DECODE[value];
+	}
+
+	/**
+	 * Encodes a linear value.
+	 *
+	 * @param linear - the linear value. Values outside 0 to 1 are clamped.
+	 * @return the encoded value, between 0 and 255.
+	 */
+	static float encode(final float linear) {
+		if (!(linear > 0f)) {
+			return ENCODE[0];
+		}
+		if (linear >= 1f) {
+			return ENCODE[ENCODE_STEPS];
+		}
+		final float position = linear * ENCODE_STEPS;
+		final int step = (int) position;
+		return ENCODE[step] + (ENCODE[step + 1] - ENCODE[step]) * (position - step);
+	}
+
+	private static double toLinear(final double value) {
+		if (value <= 0.04045d) {
+			return value / 12.92d;
+		}
+		return Math.pow((value + 0.055d) / 1.055d, 2.4d);
+	}
+
+	private static double toGamma(final double value) {
+		if (value <= 0.0031308d) {
+			return value * 12.92d;
+		}
+		return Math.pow(value, 1d / 2.4d) * 1.055d - 0.055d;
+	}
+
+	private SrgbTransfer() {
+		throw new AssertionError("Singleton class should not be accessed by constructor.");
+	}
+}
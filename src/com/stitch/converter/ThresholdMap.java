@@ -0,0 +1,193 @@
+package com.stitch.converter;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * A square threshold texture for ordered dithering, tiled over the image.
+ * <p>
+ * Every cell of the texture holds a distinct rank. A pixel is shifted by an
+ * offset growing with the rank of its cell before it is matched against the
+ * palette, so flat areas between two palette colors turn into a fixed pattern
+ * of both. Each pixel only depends on its own position, so the pixels can be
+ * converted in any order and on any number of threads.
+ *
+ * @author Reinvert
+ *
+ */
+public enum ThresholdMap {
+	BAYER_2(bayer(2)), BAYER_4(bayer(4)), BAYER_8(bayer(8)), BAYER_16(bayer(16)),
+	/**
+	 * A 64x64 blue noise texture, which hides the pattern better than the Bayer
+	 * matrices. It is generated on first use.
+	 */
+	BLUE_NOISE(null);
+
+	private final int[] ranks;
+
+	ThresholdMap(final int[] ranks) {
+		this.ranks = ranks;
+	}
+
+	private int[] getRanks() {
+		return ranks != null ? ranks : BlueNoise.RANKS;
+	}
+
+	/**
+	 * Shifts every pixel by the threshold of its position.
+	 *
+	 * @param pixels - the RGB values of the image, row by row.
+	 * @param width  - the width of the image.
+	 * @param spread - the difference between the largest and smallest offset,
+	 *               in channel levels.
+	 * @return the shifted RGB values, in a new array.
+	 */
+	int[] apply(final int[] pixels, final int width, final int spread) {
+		final int[] ranks = getRanks();
+		final int side = (int) Math.sqrt(ranks.length);
+		final int[] offsets = new int[ranks.length];
+		for (int i = 0; i < ranks.length; i++) {
+			offsets[i] = (int) Math.round(((ranks[i] + 0.5d) / ranks.length - 0.5d) * spread);
+		}
+		final int[] shifted = new int[pixels.length];
+		final int height = width == 0 ? 0 : pixels.length / width;
+		IntStream.range(0, height).parallel().forEach(y -> {
+			final int row = (y & (side - 1)) * side;
+			for (int x = 0, offset = y * width; x < width; x++, offset++) {
+				final int shift = offsets[row + (x & (side - 1))];
+				final int rgb = pixels[offset];
+				shifted[offset] = (clamp(((rgb >> 16) & 0xFF) + shift) << 16)
+						| (clamp(((rgb >> 8) & 0xFF) + shift) << 8) | clamp((rgb & 0xFF) + shift);
+			}
+		});
+		return shifted;
+	}
+
+	private static int clamp(final int value) {
+		return Math.max(0, Math.min(255, value));
+	}
+
+	/**
+	 * Gets the map of the name, ignoring case.
+	 *
+	 * @param name - the name.
+	 * @return the map, or {@link #BAYER_8} if no map has the name.
+	 */
+	public static ThresholdMap forName(final String name) {
+		for (final ThresholdMap map : values()) {
+			if (map.name().equalsIgnoreCase(name)) {
+				return map;
+			}
+		}
+		return BAYER_8;
+	}
+
+	/**
+	 * Builds a Bayer matrix by repeatedly replacing every cell by a 2x2 block
+	 * of it.
+	 */
+	private static int[] bayer(final int side) {
+		int[] matrix = { 0 };
+		for (int size = 1; size < side; size *= 2) {
+			final int[] next = new int[size * size * 4];
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++) {
+					final int rank = matrix[y * size + x] * 4;
+					next[y * size * 2 + x] = rank;
+					next[y * size * 2 + x + size] = rank + 2;
+					next[(y + size) * size * 2 + x] = rank + 3;
+					next[(y + size) * size * 2 + x + size] = rank + 1;
+				}
+			}
+			matrix = next;
+		}
+		return matrix;
+	}
+
+	/**
+	 * Generates the blue noise texture by the void-and-cluster method, with a
+	 * fixed seed so the texture is the same on every run.
+	 */
+	private static final class BlueNoise {
+		private static final int SIDE = 64, SIZE = SIDE * SIDE;
+		private static final double SIGMA = 1.5d;
+		private static final int[] RANKS = generate();
+
+		private static int[] generate() {
+			final double[] kernel = new double[SIZE];
+			for (int y = 0; y < SIDE; y++) {
+				for (int x = 0; x < SIDE; x++) {
+					final int dx = Math.min(x, SIDE - x), dy = Math.min(y, SIDE - y);
+					kernel[y * SIDE + x] = Math.exp(-(dx * dx + dy * dy) / (2d * SIGMA * SIGMA));
+				}
+			}
+
+			final boolean[] initial = new boolean[SIZE];
+			final double[] energy = new double[SIZE];
+			final Random random = new Random(SIZE);
+			int ones = 0;
+			while (ones < SIZE / 10) {
+				final int cell = random.nextInt(SIZE);
+				if (!initial[cell]) {
+					initial[cell] = true;
+					update(energy, kernel, cell, 1d);
+					ones++;
+				}
+			}
+			// Move the tightest cluster into the largest void until that changes nothing.
+			while (true) {
+				final int cluster = find(energy, initial, true);
+				initial[cluster] = false;
+				update(energy, kernel, cluster, -1d);
+				final int largestVoid = find(energy, initial, false);
+				initial[largestVoid] = true;
+				update(energy, kernel, largestVoid, 1d);
+				if (largestVoid == cluster) {
+					break;
+				}
+			}
+
+			final int[] ranks = new int[SIZE];
+			final boolean[] pattern = initial.clone();
+			final double[] patternEnergy = energy.clone();
+			for (int rank = ones - 1; rank >= 0; rank--) {
+				final int cluster = find(patternEnergy, pattern, true);
+				pattern[cluster] = false;
+				update(patternEnergy, kernel, cluster, -1d);
+				ranks[cluster] = rank;
+			}
+			for (int rank = ones; rank < SIZE; rank++) {
+				final int largestVoid = find(energy, initial, false);
+				initial[largestVoid] = true;
+				update(energy, kernel, largestVoid, 1d);
+				ranks[largestVoid] = rank;
+			}
+			return ranks;
+		}
+
+		private static void update(final double[] energy, final double[] kernel, final int cell, final double sign) {
+			final int cellX = cell % SIDE, cellY = cell / SIDE;
+			for (int y = 0; y < SIDE; y++) {
+				final int row = ((y - cellY + SIDE) % SIDE) * SIDE;
+				for (int x = 0; x < SIDE; x++) {
+					energy[y * SIDE + x] += sign * kernel[row + (x - cellX + SIDE) % SIDE];
+				}
+			}
+		}
+
+		/**
+		 * Finds the set cell of the highest energy, or the unset cell of the
+		 * lowest energy.
+		 */
+		private static int find(final double[] energy, final boolean[] pattern, final boolean isSet) {
+			int found = -1;
+			for (int cell = 0; cell < SIZE; cell++) {
+				if (pattern[cell] == isSet && (found == -1
+						|| (isSet ? energy[cell] > energy[found] : energy[cell] < energy[found]))) {
+					found = cell;
+				}
+			}
+			return found;
+		}
+	}
+}
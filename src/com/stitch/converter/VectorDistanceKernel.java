@@ -0,0 +1,55 @@
+package com.stitch.converter;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A {@link DistanceKernel} comparing one color against a full vector of palette
+ * colors per step. Only loaded when the {@code jdk.incubator.vector} module is
+ * available.
+ *
+ * @author Reinvert
+ *
+ */
+final class VectorDistanceKernel extends DistanceKernel {
+	// FloatPalette pads its arrays to a multiple of 16 lanes.
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED.length() <= 16
+			? FloatVector.SPECIES_PREFERRED
+			: FloatVector.SPECIES_512;
+	private static final VectorSpecies<Integer> INDEX_SPECIES = VectorSpecies.of(int.class, SPECIES.vectorShape());
+
+	VectorDistanceKernel() {
+	}
+
+	@Override
+	int nearest(final FloatPalette palette, final float red, final float green, final float blue) {
+		if (palette.size() == 0) {
+			return -1;
+		}
+		final int length = SPECIES.length();
+		final IntVector step = IntVector.broadcast(INDEX_SPECIES, length);
+		IntVector index = IntVector.zero(INDEX_SPECIES).addIndex(1);
+		IntVector nearest = IntVector.broadcast(INDEX_SPECIES, Integer.MAX_VALUE);
+		FloatVector difference = FloatVector.broadcast(SPECIES, Float.MAX_VALUE);
+
+		for (int i = 0; i < palette.red.length; i += length) {
+			final FloatVector redDifference = FloatVector.fromArray(SPECIES, palette.red, i).sub(red);
+			final FloatVector greenDifference = FloatVector.fromArray(SPECIES, palette.green, i).sub(green);
+			final FloatVector blueDifference = FloatVector.fromArray(SPECIES, palette.blue, i).sub(blue);
+			final FloatVector calculatedDifference = redDifference.mul(redDifference)
+					.add(greenDifference.mul(greenDifference)).add(blueDifference.mul(blueDifference));
+			final VectorMask<Float> closer = calculatedDifference.lt(difference);
+			difference = difference.blend(calculatedDifference, closer);
+			nearest = nearest.blend(index, closer.cast(INDEX_SPECIES));
+			index = index.add(step);
+		}
+
+		// Each lane holds its lowest closest index, so take the lowest index among the closest lanes.
+		final float minimum = difference.reduceLanes(VectorOperators.MIN);
+		final VectorMask<Integer> isMinimum = difference.eq(minimum).cast(INDEX_SPECIES);
+		return nearest.blend(Integer.MAX_VALUE, isMinimum.not()).reduceLanes(VectorOperators.MIN);
+	}
+}
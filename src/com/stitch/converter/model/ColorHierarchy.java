@@ -0,0 +1,114 @@
+package com.stitch.converter.model;
+
+import java.io.Serializable;
+
+/**
+ * The whole sequence of colors dropped from a converted image, down to a
+ * single color, so the image can be rebuilt for any color limit by replaying
+ * the moved cells instead of converting again.
+ *
+ * @author Reinvert
+ *
+ */
+public class ColorHierarchy implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final StitchColor[] colors;
+	private final int width;
+	// The index of the color of every cell before any color is dropped.
+	private final int[] initial;
+	// The color dropped at every step.
+	private final int[] removed;
+	// The moves of step i are movedCells[stepStart[i]] to movedCells[stepStart[i + 1] - 1].
+	private final int[] stepStart;
+	private final int[] movedCells, movedTargets;
+
+	/**
+	 * Creates the hierarchy.
+	 *
+	 * @param colors       - the colors of the converted image.
+	 * @param width        - the width of the image.
+	 * @param initial      - the index of the color of every cell, row by row.
+	 * @param removed      - the index of the color dropped at every step.
+	 * @param stepStart    - the first move of every step, followed by the
+	 *                     number of moves.
+	 * @param movedCells   - the cell of every move.
+	 * @param movedTargets - the index of the color every move gives its cell.
+	 */
+	public ColorHierarchy(final StitchColor[] colors, final int width, final int[] initial, final int[] removed,
+			final int[] stepStart, final int[] movedCells, final int[] movedTargets) {
+		this.colors = colors;
+		this.width = width;
+		this.initial = initial;
+		this.removed = removed;
+		this.stepStart = stepStart;
+		this.movedCells = movedCells;
+		this.movedTargets = movedTargets;
+	}
+
+	public StitchColor getColor(final int index) {
+		return colors[index];
+	}
+
+	/**
+	 * Gets the number of colors of the converted image, which is the largest
+	 * useful color limit.
+	 *
+	 * @return the number of colors.
+	 */
+	public int getColorCount() {
+		return colors.length;
+	}
+
+	/**
+	 * Gets the smallest color limit the hierarchy reaches.
+	 *
+	 * @return the number of colors left after the last step.
+	 */
+	public int getMinimumColorCount() {
+		return colors.length - removed.length;
+	}
+
+	/**
+	 * Rebuilds the color of every cell for the color limit.
+	 *
+	 * @param limit - the maximum number of colors.
+	 * @return the index of the color of every cell, row by row.
+	 */
+	public int[] getGrid(final int limit) {
+		final int steps = Math.max(0, Math.min(removed.length, colors.length - limit));
+		final int[] grid = initial.clone();
+		for (int move = 0; move < stepStart[steps]; move++) {
+			grid[movedCells[move]] = movedTargets[move];
+		}
+		return grid;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return width == 0 ? 0 : initial.length / width;
+	}
+
+	int[] getInitial() {
+		return initial;
+	}
+
+	int[] getRemoved() {
+		return removed;
+	}
+
+	int[] getStepStart() {
+		return stepStart;
+	}
+
+	int[] getMovedCells() {
+		return movedCells;
+	}
+
+	int[] getMovedTargets() {
+		return movedTargets;
+	}
+}
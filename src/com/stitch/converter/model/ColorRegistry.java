@@ -0,0 +1,72 @@
+package com.stitch.converter.model;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps one canonical {@link StitchColor} for every name and RGB value, so the
+ * colors of a palette and of every pattern read from a file are shared, and
+ * each carries a dense ordinal that can index plain arrays.
+ * <p>
+ * Colors are never removed, as the ordinals of the colors in use must stay
+ * valid. The registry holds one entry for every distinct color of the
+ * palettes and of the patterns read, so it stays as small as the palettes.
+ *
+ * @author Reinvert
+ *
+ */
+public final class ColorRegistry {
+	private static final ConcurrentHashMap<Key, StitchColor> COLORS = new ConcurrentHashMap<>();
+	// Written only while registering a color, so reading an ordinal takes no lock.
+	private static final List<StitchColor> ORDINALS = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Gets the canonical color of the name and RGB value of the color,
+	 * registering the color if it is the first of them.
+	 *
+	 * @param color - the color.
+	 * @return the canonical color, which has an ordinal.
+	 */
+	public static StitchColor intern(final StitchColor color) {
+		final Key key = new Key(color.getRGB(), color.getName());
+		final StitchColor canonical = COLORS.get(key);
+		if (canonical != null) {
+			return canonical;
+		}
+		return COLORS.computeIfAbsent(key, absent -> {
+			synchronized (ORDINALS) {
+				color.setOrdinal(ORDINALS.size());
+				ORDINALS.add(color);
+			}
+			return color;
+		});
+	}
+
+	/**
+	 * Gets the canonical color of the ordinal.
+	 *
+	 * @param ordinal - the ordinal.
+	 * @return the color.
+	 */
+	public static StitchColor get(final int ordinal) {
+		return ORDINALS.get(ordinal);
+	}
+
+	/**
+	 * Gets the number of canonical colors, which is one more than the largest
+	 * ordinal.
+	 *
+	 * @return the number of colors.
+	 */
+	public static int size() {
+		return ORDINALS.size();
+	}
+
+	private record Key(int rgb, String name) {
+	}
+
+	private ColorRegistry() {
+		throw new AssertionError("Singleton class should not be accessed by constructor.");
+	}
+}
@@ -0,0 +1,741 @@
+package com.stitch.converter.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map.Entry;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads and writes saved patterns.
+ * <p>
+ * A saved pattern starts with a header of the magic number, the version and
+ * the flags, followed by sections that are each deflated if the flags tell so.
+ * The first section holds the size and the background of the image, a table of
+ * the colors used with their number of cells, the completed and highlighted
+ * marks of the colors as bit sets, and the alternate colors. The grid follows
+ * as one section for every band of rows, holding runs of table indices, and
+ * then the color hierarchy. The file ends with an index of where every band
+ * and the hierarchy start. Every count and index in a section is a
+ * variable-length integer.
+ * <p>
+ * A file can be read whole from a stream, or {@link #open(File) opened}, which
+ * only reads the first section and leaves every band to be read from the file
+ * when its rows are first used. Files saved before by Java serialization are
+ * still read.
+ *
+ * @author Reinvert
+ *
+ */
+public final class PatternFile {
+	private static final int MAGIC = 0x53444D43, VERSION = 3;
+	private static final int FLAG_DEFLATED = 1;
+	private static final int HEADER_SIZE = 12, TRAILER_SIZE = Long.BYTES + Integer.BYTES;
+	private static final int BUFFER_SIZE = 1 << 16;
+	// The number of rows of a band, the part of the grid that is read on its own.
+	private static final int BAND_ROWS = 32;
+
+	/**
+	 * Reads a saved pattern.
+	 *
+	 * @param file - the file.
+	 * @return the pattern.
+	 * @throws IOException            occurs when the file can't be read or is
+	 *                                not a pattern.
+	 * @throws ClassNotFoundException occurs when a serialized pattern holds an
+	 *                                unknown class.
+	 */
+	public static StitchImage load(final File file) throws IOException, ClassNotFoundException {
+		try (InputStream in = new FileInputStream(file)) {
+			return read(in);
+		}
+	}
+
+	/**
+	 * Opens a saved pattern. Only the colors are read at once; the rows of the
+	 * grid and the color hierarchy are read from the file when first used, so
+	 * opening takes the same time for any size of pattern. Files of older
+	 * formats are read whole.
+	 * <p>
+	 * The file is only open while it is read, so it can be replaced at any
+	 * time. Saving the pattern reads everything left first; if the file is
+	 * changed otherwise, reading the rest fails instead of reading the new file.
+	 *
+	 * @param file - the file.
+	 * @return the pattern.
+	 * @throws IOException            occurs when the file can't be read or is
+	 *                                not a pattern.
+	 * @throws ClassNotFoundException occurs when a serialized pattern holds an
+	 *                                unknown class.
+	 */
+	public static StitchImage open(final File file) throws IOException, ClassNotFoundException {
+		final Path path = file.toPath();
+		final Source source;
+		final Info info;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			if (size < HEADER_SIZE + TRAILER_SIZE) {
+				return load(file);
+			}
+			final ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+			if (header.getInt(0) != MAGIC || header.getInt(Integer.BYTES) != VERSION) {
+				return load(file);
+			}
+			final boolean isDeflated = (header.getInt(2 * Integer.BYTES) & FLAG_DEFLATED) != 0;
+			final long trailer = size - TRAILER_SIZE;
+			final ByteBuffer end = readFully(channel, trailer, TRAILER_SIZE);
+			if (end.getInt(Long.BYTES) != MAGIC) {
+				throw new StreamCorruptedException("Pattern file is truncated");
+			}
+			final long index = end.getLong(0);
+			if (index < HEADER_SIZE || index > trailer - Integer.BYTES) {
+				throw new StreamCorruptedException("Broken pattern file index: " + index);
+			}
+			try (DataInputStream in = section(channel, HEADER_SIZE, index, isDeflated)) {
+				info = Info.read(in);
+			}
+			final int bandCount = readFully(channel, index, Integer.BYTES).getInt(0);
+			if (bandCount != info.getBandCount() || index + Integer.BYTES + (bandCount + 1L) * Long.BYTES > trailer) {
+				throw new StreamCorruptedException("Broken pattern file index: " + bandCount + " bands");
+			}
+			final ByteBuffer table = readFully(channel, index + Integer.BYTES, (bandCount + 1) * Long.BYTES);
+			final long[] offsets = new long[bandCount + 1];
+			for (int i = 0; i < offsets.length; i++) {
+				final long offset = table.getLong(i * Long.BYTES);
+				// The last offset is the hierarchy, which the pattern may not have.
+				if ((offset < HEADER_SIZE || offset >= index) && !(i == bandCount && offset == -1)) {
+					throw new StreamCorruptedException("Broken pattern file index: " + offset);
+				}
+				offsets[i] = offset;
+			}
+			source = new Source(path, size, Files.getLastModifiedTime(path).toMillis(), index, isDeflated, info,
+					offsets);
+		}
+		return info.restore(new short[info.width * info.height], source);
+	}
+
+	/**
+	 * Writes a pattern to the file. The pattern is written to a temporary file
+	 * next to it, forced to the disk, and then moved over the file at once, so
+	 * the file holds either the old or the new pattern whatever happens.
+	 *
+	 * @param file       - the file.
+	 * @param image      - the pattern.
+	 * @param isDeflated - whether the sections are deflated.
+	 * @throws IOException occurs when the file can't be written.
+	 */
+	public static void save(final File file, final StitchImage image, final boolean isDeflated) throws IOException {
+		final Path target = file.toPath().toAbsolutePath();
+		final Path directory = target.getParent();
+		final Path temporary = Files.createTempFile(directory, target.getFileName() + ".", ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+				write(Channels.newOutputStream(channel), image, isDeflated);
+				channel.force(true);
+			}
+			try {
+				Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (final AtomicMoveNotSupportedException e) {
+				Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			// The move itself is only durable once the directory is synced, which not every system allows.
+			try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+				channel.force(true);
+			} catch (final IOException e) {
+				// The file is in place either way.
+			}
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	/**
+	 * Reads a saved pattern of any format from the stream.
+	 *
+	 * @param in - the stream, which isn't closed.
+	 * @return the pattern.
+	 * @throws IOException            occurs when the stream can't be read or
+	 *                                doesn't hold a pattern.
+	 * @throws ClassNotFoundException occurs when a serialized pattern holds an
+	 *                                unknown class.
+	 */
+	public static StitchImage read(final InputStream in) throws IOException, ClassNotFoundException {
+		final BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+		buffered.mark(Integer.BYTES);
+		final DataInputStream header = new DataInputStream(buffered);
+		if (header.readInt() != MAGIC) {
+			buffered.reset();
+			final Object object = new ObjectInputStream(buffered).readObject();
+			if (!(object instanceof StitchImage)) {
+				throw new StreamCorruptedException("Not a saved pattern: " + object.getClass().getName());
+			}
+			return (StitchImage) object;
+		}
+		final int version = header.readInt();
+		final boolean isDeflated = (header.readInt() & FLAG_DEFLATED) != 0;
+		if (version != VERSION) {
+			throw new StreamCorruptedException("Unsupported pattern file version: " + version);
+		}
+		final Info info;
+		try (DataInputStream section = readSection(header, isDeflated)) {
+			info = Info.read(section);
+		}
+		final short[] grid = new short[info.width * info.height];
+		for (int band = 0; band < info.getBandCount(); band++) {
+			try (DataInputStream section = readSection(header, isDeflated)) {
+				info.readBand(section, grid, band);
+			}
+		}
+		final StitchImage image = info.restore(grid, null);
+		if (info.hasHierarchy) {
+			try (DataInputStream section = readSection(header, isDeflated)) {
+				image.setColorHierarchy(readHierarchy(section, info.width, info.height));
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Writes a pattern to the stream.
+	 *
+	 * @param out        - the stream, which is flushed but not closed.
+	 * @param image      - the pattern.
+	 * @param isDeflated - whether the sections are deflated.
+	 * @throws IOException occurs when the stream can't be written.
+	 */
+	public static void write(final OutputStream out, final StitchImage image, final boolean isDeflated)
+			throws IOException {
+		final Sections sections = new Sections(new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE)), isDeflated);
+		try {
+			sections.out.writeInt(MAGIC);
+			sections.out.writeInt(VERSION);
+			sections.out.writeInt(isDeflated ? FLAG_DEFLATED : 0);
+			sections.position = HEADER_SIZE;
+
+			// An image that was never sized has no cells.
+			final short[] grid = image.getGrid();
+			final int width = grid == null ? 0 : (int) image.getWidth(), height = grid == null ? 0 : (int) image.getHeight();
+			// A hierarchy that was never built isn't worth its size in every file.
+			final ColorHierarchy hierarchy = image.getBuiltColorHierarchy();
+			// Slots of removed colors are left out, so the table is numbered again.
+			final PixelList[] palette = image.getPalette();
+			final int[] indices = new int[palette.length];
+			int size = 0;
+			for (int slot = 0; slot < palette.length; slot++) {
+				indices[slot] = palette[slot] != null ? size++ : -1;
+			}
+
+			final DataOutputStream info = sections.begin();
+			writeVarint(info, width);
+			writeVarint(info, height);
+			writeVarint(info, BAND_ROWS);
+			writeColor(info, image.getBackground());
+			info.writeBoolean(image.isNumberVisible());
+			writeVarint(info, size);
+			final byte[] completed = new byte[(size + 7) / 8], highlighted = new byte[(size + 7) / 8];
+			for (int slot = 0; slot < palette.length; slot++) {
+				if (palette[slot] != null) {
+					final int index = indices[slot];
+					writeColor(info, palette[slot].getColor());
+					writeVarint(info, palette[slot].getCount());
+					if (palette[slot].isCompleted()) {
+						completed[index >> 3] |= 1 << (index & 7);
+					}
+					if (palette[slot].isHighlighted()) {
+						highlighted[index >> 3] |= 1 << (index & 7);
+					}
+				}
+			}
+			info.write(completed);
+			info.write(highlighted);
+			writeVarint(info, image.getAlternateColors().size());
+			for (final Entry<StitchColor, Integer> entry : image.getAlternateColors().entrySet()) {
+				writeColor(info, entry.getKey());
+				writeVarint(info, entry.getValue());
+			}
+			info.writeBoolean(hierarchy != null);
+			sections.end();
+
+			final int bandCount = (height + BAND_ROWS - 1) / BAND_ROWS;
+			final long[] offsets = new long[bandCount + 1];
+			for (int band = 0; band < bandCount; band++) {
+				offsets[band] = sections.position;
+				// Runs of the table index plus one, so an empty cell is 0.
+				final DataOutputStream runs = sections.begin();
+				final int last = Math.min(height, (band + 1) * BAND_ROWS) * width;
+				for (int cell = band * BAND_ROWS * width; cell < last;) {
+					final short slot = grid[cell];
+					int end = cell + 1;
+					while (end < last && grid[end] == slot) {
+						end++;
+					}
+					writeVarint(runs, slot < 0 ? 0 : indices[slot] + 1);
+					writeVarint(runs, end - cell);
+					cell = end;
+				}
+				sections.end();
+			}
+			offsets[bandCount] = -1;
+			if (hierarchy != null) {
+				offsets[bandCount] = sections.position;
+				writeHierarchy(sections.begin(), hierarchy);
+				sections.end();
+			}
+
+			final long index = sections.position;
+			sections.out.writeInt(bandCount);
+			for (final long offset : offsets) {
+				sections.out.writeLong(offset);
+			}
+			sections.out.writeLong(index);
+			sections.out.writeInt(MAGIC);
+			sections.out.flush();
+		} finally {
+			sections.close();
+		}
+	}
+
+	private static DataInputStream readSection(final DataInputStream in, final boolean isDeflated) throws IOException {
+		final int length = in.readInt();
+		if (length < 0) {
+			throw new StreamCorruptedException("Broken section length: " + length);
+		}
+		final byte[] bytes = in.readNBytes(length);
+		if (bytes.length != length) {
+			throw new EOFException();
+		}
+		final InputStream section = new ByteArrayInputStream(bytes);
+		return new DataInputStream(isDeflated ? new BufferedInputStream(new InflaterInputStream(section)) : section);
+	}
+
+	/**
+	 * Reads the section at the offset, which must end before the limit.
+	 */
+	private static DataInputStream section(final FileChannel channel, final long offset, final long limit,
+			final boolean isDeflated) throws IOException {
+		final int length = readFully(channel, offset, Integer.BYTES).getInt(0);
+		if (length < 0 || length > limit - offset - Integer.BYTES) {
+			throw new StreamCorruptedException("Broken section length: " + length);
+		}
+		final InputStream section = new ByteArrayInputStream(readFully(channel, offset + Integer.BYTES, length).array());
+		return new DataInputStream(isDeflated ? new BufferedInputStream(new InflaterInputStream(section)) : section);
+	}
+
+	private static ByteBuffer readFully(final FileChannel channel, final long position, final int length)
+			throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+		return buffer;
+	}
+
+	private static void readMarks(final DataInputStream in, final PixelList[] palette) throws IOException {
+		final byte[] completed = new byte[(palette.length + 7) / 8], highlighted = new byte[(palette.length + 7) / 8];
+		in.readFully(completed);
+		in.readFully(highlighted);
+		for (int index = 0; index < palette.length; index++) {
+			palette[index].setCompleted((completed[index >> 3] & 1 << (index & 7)) != 0);
+			palette[index].setHighlighted((highlighted[index >> 3] & 1 << (index & 7)) != 0);
+		}
+	}
+
+	/**
+	 * Writes the hierarchy. The cells of the moves of a step mostly come in
+	 * order, so each is written as the signed distance from the previous one.
+	 */
+	private static void writeHierarchy(final DataOutputStream out, final ColorHierarchy hierarchy) throws IOException {
+		writeVarint(out, hierarchy.getColorCount());
+		for (int index = 0; index < hierarchy.getColorCount(); index++) {
+			writeColor(out, hierarchy.getColor(index));
+		}
+		writeVarint(out, hierarchy.getWidth());
+		final int[] initial = hierarchy.getInitial();
+		writeVarint(out, initial.length);
+		for (int cell = 0; cell < initial.length;) {
+			int end = cell + 1;
+			while (end < initial.length && initial[end] == initial[cell]) {
+				end++;
+			}
+			writeVarint(out, initial[cell] + 1);
+			writeVarint(out, end - cell);
+			cell = end;
+		}
+		final int[] removed = hierarchy.getRemoved(), stepStart = hierarchy.getStepStart();
+		final int[] movedCells = hierarchy.getMovedCells(), movedTargets = hierarchy.getMovedTargets();
+		writeVarint(out, removed.length);
+		for (int step = 0; step < removed.length; step++) {
+			writeVarint(out, removed[step]);
+			writeVarint(out, stepStart[step + 1] - stepStart[step]);
+			int previous = 0;
+			for (int move = stepStart[step]; move < stepStart[step + 1]; move++) {
+				writeVarint(out, zigzag(movedCells[move] - previous));
+				writeVarint(out, movedTargets[move]);
+				previous = movedCells[move];
+			}
+		}
+	}
+
+	/**
+	 * Reads the hierarchy of an image of the size. Every color index is
+	 * checked, as a broken one would only fail once a color limit is set.
+	 */
+	private static ColorHierarchy readHierarchy(final DataInputStream in, final int imageWidth, final int imageHeight)
+			throws IOException {
+		final int size = readVarint(in);
+		if (size < 0 || size > Short.MAX_VALUE) {
+			throw new StreamCorruptedException("Too many color hierarchy colors: " + size);
+		}
+		final StitchColor[] colors = new StitchColor[size];
+		for (int index = 0; index < colors.length; index++) {
+			colors[index] = readColor(in);
+		}
+		final int width = readVarint(in), cells = readVarint(in);
+		if (width != imageWidth || cells != imageWidth * imageHeight) {
+			throw new StreamCorruptedException(String.format("Color hierarchy of %d cells in rows of %d for a %dx%d image",
+					cells, width, imageWidth, imageHeight));
+		}
+		final int[] initial = new int[cells];
+		for (int cell = 0; cell < initial.length;) {
+			final int value = readVarint(in) - 1, length = readVarint(in);
+			if (value < -1 || value >= colors.length || length <= 0 || length > initial.length - cell) {
+				throw new StreamCorruptedException("Broken color hierarchy run at cell " + cell);
+			}
+			for (final int end = cell + length; cell < end; cell++) {
+				initial[cell] = value;
+			}
+		}
+		final int steps = readVarint(in);
+		if (steps < 0 || steps > colors.length) {
+			throw new StreamCorruptedException("Broken color hierarchy steps: " + steps);
+		}
+		final int[] removed = new int[steps], stepStart = new int[steps + 1];
+		int[] movedCells = new int[initial.length], movedTargets = new int[initial.length];
+		int moves = 0;
+		for (int step = 0; step < removed.length; step++) {
+			removed[step] = readVarint(in);
+			final int count = readVarint(in);
+			// A step moves every cell at most once.
+			if (removed[step] < 0 || removed[step] >= colors.length || count < 0 || count > initial.length) {
+				throw new StreamCorruptedException("Broken color hierarchy step " + step);
+			}
+			if (moves + count > movedCells.length) {
+				final int capacity = Math.max(moves + count, movedCells.length * 2);
+				movedCells = Arrays.copyOf(movedCells, capacity);
+				movedTargets = Arrays.copyOf(movedTargets, capacity);
+			}
+			int previous = 0;
+			for (int move = 0; move < count; move++, moves++) {
+				previous += unzigzag(readVarint(in));
+				if (previous < 0 || previous >= initial.length) {
+					throw new StreamCorruptedException("Color hierarchy move outside of the image: " + previous);
+				}
+				movedCells[moves] = previous;
+				movedTargets[moves] = readVarint(in);
+				if (movedTargets[moves] < 0 || movedTargets[moves] >= colors.length) {
+					throw new StreamCorruptedException("Color hierarchy move to an unknown color: " + movedTargets[moves]);
+				}
+			}
+			stepStart[step + 1] = moves;
+		}
+		return new ColorHierarchy(colors, width, initial, removed, stepStart,
+				Arrays.copyOf(movedCells, moves), Arrays.copyOf(movedTargets, moves));
+	}
+
+	private static void writeColor(final DataOutputStream out, final StitchColor color) throws IOException {
+		out.writeBoolean(color != null);
+		if (color != null) {
+			out.writeInt(color.getRGB());
+			out.writeUTF(color.getName());
+		}
+	}
+
+	private static StitchColor readColor(final DataInputStream in) throws IOException {
+		if (!in.readBoolean()) {
+			return null;
+		}
+		final int rgb = in.readInt();
+		return ColorRegistry.intern(new StitchColor(rgb, in.readUTF()));
+	}
+
+	private static void writeVarint(final DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarint(final DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			final int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("Variable-length integer too long");
+	}
+
+	private static int zigzag(final int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unzigzag(final int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * The first section of a file, which is everything but the grid and the
+	 * hierarchy.
+	 */
+	private static final class Info {
+		private int width, height, bandRows;
+		private StitchColor background;
+		private boolean isNumberVisible, hasHierarchy;
+		private PixelList[] palette;
+		private StitchColor[] alternates;
+		private int[] alternateCounts;
+
+		private static Info read(final DataInputStream in) throws IOException {
+			final Info info = new Info();
+			info.width = readVarint(in);
+			info.height = readVarint(in);
+			info.bandRows = readVarint(in);
+			if (info.width < 0 || info.height < 0 || (long) info.width * info.height > Integer.MAX_VALUE) {
+				throw new StreamCorruptedException(String.format("Pattern too large: %dx%d", info.width, info.height));
+			}
+			if (info.bandRows <= 0) {
+				throw new StreamCorruptedException("Broken band height: " + info.bandRows);
+			}
+			info.background = readColor(in);
+			info.isNumberVisible = in.readBoolean();
+			final int size = readVarint(in);
+			if (size < 0 || size > Short.MAX_VALUE) {
+				throw new StreamCorruptedException("Too many colors: " + size);
+			}
+			info.palette = new PixelList[size];
+			for (int index = 0; index < size; index++) {
+				info.palette[index] = new PixelList(readColor(in));
+				info.palette[index].addCount(readVarint(in));
+			}
+			readMarks(in, info.palette);
+			final int alternates = readVarint(in);
+			if (alternates < 0) {
+				throw new StreamCorruptedException("Broken alternate colors: " + alternates);
+			}
+			info.alternates = new StitchColor[alternates];
+			info.alternateCounts = new int[alternates];
+			for (int i = 0; i < alternates; i++) {
+				info.alternates[i] = readColor(in);
+				info.alternateCounts[i] = readVarint(in);
+			}
+			info.hasHierarchy = in.readBoolean();
+			return info;
+		}
+
+		private int getBandCount() {
+			return (int) (((long) height + bandRows - 1) / bandRows);
+		}
+
+		private void readBand(final DataInputStream in, final short[] grid, final int band) throws IOException {
+			final int last = (int) Math.min(height, (long) (band + 1) * bandRows) * width;
+			for (int cell = (int) Math.min((long) band * bandRows * width, last); cell < last;) {
+				final int value = readVarint(in), length = readVarint(in);
+				if (value < 0 || value > palette.length || length <= 0 || length > last - cell) {
+					throw new StreamCorruptedException("Broken run at cell " + cell);
+				}
+				final short slot = (short) (value - 1);
+				for (final int end = cell + length; cell < end; cell++) {
+					grid[cell] = slot;
+				}
+			}
+		}
+
+		private StitchImage restore(final short[] grid, final Source source) {
+			final StitchImage image = new StitchImage();
+			image.setBackground(background);
+			image.setNumberVisible(isNumberVisible);
+			image.restore(width, height, palette, grid, source);
+			for (int i = 0; i < alternates.length; i++) {
+				image.addAlternateColor(alternates[i], alternateCounts[i]);
+			}
+			return image;
+		}
+	}
+
+	/**
+	 * The bands and the hierarchy of an opened file that are not read yet. The
+	 * file is opened again for every read, and is checked to be the one that
+	 * was opened, as a file that was replaced since has other offsets.
+	 */
+	static final class Source {
+		private final Path path;
+		private final long size, lastModified, index;
+		private final boolean isDeflated;
+		private final Info info;
+		// The start of every band, followed by the start of the hierarchy or -1.
+		private final long[] offsets;
+		private final boolean[] isBandRead;
+		private int unreadBands;
+		private boolean isHierarchyRead;
+		private ColorHierarchy hierarchy;
+
+		private Source(final Path path, final long size, final long lastModified, final long index,
+				final boolean isDeflated, final Info info, final long[] offsets) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.index = index;
+			this.isDeflated = isDeflated;
+			this.info = info;
+			this.offsets = offsets;
+			isBandRead = new boolean[offsets.length - 1];
+			unreadBands = isBandRead.length;
+			isHierarchyRead = offsets[offsets.length - 1] == -1;
+		}
+
+		/**
+		 * Reads the bands of the rows into the grid, unless they are read already.
+		 *
+		 * @param grid    - the grid of the image.
+		 * @param fromRow - the first row.
+		 * @param toRow   - the row after the last row.
+		 * @return whether every band is read.
+		 */
+		synchronized boolean readRows(final short[] grid, final int fromRow, final int toRow) {
+			final int first = Math.max(0, fromRow / info.bandRows);
+			final int last = Math.min(isBandRead.length, (toRow + info.bandRows - 1) / info.bandRows);
+			int band = first;
+			while (band < last && isBandRead[band]) {
+				band++;
+			}
+			if (band == last) {
+				return unreadBands == 0;
+			}
+			try (FileChannel channel = openChannel()) {
+				for (; band < last; band++) {
+					if (!isBandRead[band]) {
+						try (DataInputStream in = section(channel, offsets[band], index, isDeflated)) {
+							info.readBand(in, grid, band);
+						}
+						isBandRead[band] = true;
+						unreadBands--;
+					}
+				}
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return unreadBands == 0;
+		}
+
+		/**
+		 * Reads the color hierarchy, unless it is read already. The images
+		 * sharing the source get the same hierarchy.
+		 *
+		 * @return the hierarchy, or null if the pattern has none.
+		 */
+		synchronized ColorHierarchy readHierarchy() {
+			if (isHierarchyRead) {
+				return hierarchy;
+			}
+			try (FileChannel channel = openChannel();
+					DataInputStream in = section(channel, offsets[offsets.length - 1], index, isDeflated)) {
+				hierarchy = PatternFile.readHierarchy(in, info.width, info.height);
+				return hierarchy;
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			} finally {
+				isHierarchyRead = true;
+			}
+		}
+
+		private FileChannel openChannel() throws IOException {
+			final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			try {
+				if (channel.size() != size || Files.getLastModifiedTime(path).toMillis() != lastModified) {
+					throw new IOException("Pattern file was changed since it was opened: " + path);
+				}
+				return channel;
+			} catch (final IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+	}
+
+	private static final class Sections {
+		private final DataOutputStream out;
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+		private final Deflater deflater;
+		private DeflaterOutputStream deflating;
+		private BufferedOutputStream section;
+		private long position;
+
+		private Sections(final DataOutputStream out, final boolean isDeflated) {
+			this.out = out;
+			deflater = isDeflated ? new Deflater(Deflater.BEST_SPEED) : null;
+		}
+
+		private DataOutputStream begin() {
+			buffer.reset();
+			if (deflater == null) {
+				return new DataOutputStream(buffer);
+			}
+			deflater.reset();
+			deflating = new DeflaterOutputStream(buffer, deflater, BUFFER_SIZE);
+			// The deflater is slow to take single bytes, so they are passed on in blocks.
+			section = new BufferedOutputStream(deflating, BUFFER_SIZE);
+			return new DataOutputStream(section);
+		}
+
+		private void end() throws IOException {
+			if (deflater != null) {
+				section.flush();
+				deflating.finish();
+			}
+			out.writeInt(buffer.size());
+			buffer.writeTo(out);
+			position += Integer.BYTES + buffer.size();
+		}
+
+		private void close() {
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+	}
+
+	private PatternFile() {
+		throw new AssertionError("Singleton class should not be accessed by constructor.");
+	}
+}
@@ -0,0 +1,294 @@
+package com.stitch.converter.model;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * The edits of a saved pattern made since it was last written whole, kept in
+ * a file next to it so an edit costs a few bytes instead of a new pattern
+ * file.
+ * <p>
+ * The journal starts with a header of the magic number, the version, and the
+ * length and modification time of the pattern file it belongs to, so a
+ * journal left over from an older pattern file is ignored. Every record is its
+ * length, the edit and a checksum of the edit, so a record torn by a crash
+ * ends the journal. Every edit sets a state instead of changing it, so edits
+ * the pattern file already holds can be replayed on it.
+ *
+ * @author Reinvert
+ *
+ */
+public final class PatternJournal {
+	private static final int MAGIC = 0x53444D4A, VERSION = 1;
+	private static final int HEADER_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES;
+	private static final String EXTENSION = ".journal";
+
+	/**
+	 * Gets the journal file of the pattern file.
+	 *
+	 * @param pattern - the pattern file.
+	 * @return the journal file.
+	 */
+	public static File getFile(final File pattern) {
+		return new File(pattern.getPath() + EXTENSION);
+	}
+
+	/**
+	 * Appends the edit to the journal of the pattern file, starting a new
+	 * journal if there is none for the file as it is now.
+	 *
+	 * @param pattern - the pattern file, which must exist.
+	 * @param edit    - the edit.
+	 * @return the number of edits in the journal.
+	 * @throws IOException occurs when the journal can't be written.
+	 */
+	public static int append(final File pattern, final Edit edit) throws IOException {
+		final Path journal = getFile(pattern).toPath();
+		final byte[] header = header(pattern.toPath());
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		edit.write(new DataOutputStream(bytes));
+		final CRC32 checksum = new CRC32();
+		checksum.update(bytes.toByteArray());
+
+		final Scan scan = scan(journal, header);
+		try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 2 * Integer.BYTES + bytes.size());
+			if (scan == null) {
+				channel.truncate(0);
+				buffer.put(header);
+			} else {
+				// A record torn by a crash is dropped, so it doesn't hide the records after it.
+				channel.truncate(scan.length);
+				channel.position(scan.length);
+			}
+			buffer.putInt(bytes.size()).put(bytes.toByteArray()).putInt((int) checksum.getValue()).flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		}
+		return scan == null ? 1 : scan.records + 1;
+	}
+
+	/**
+	 * Applies the edits of the journal of the pattern file to the pattern read
+	 * from it.
+	 *
+	 * @param pattern - the pattern file.
+	 * @param image   - the pattern.
+	 * @return the number of edits applied.
+	 * @throws IOException occurs when the journal can't be read.
+	 */
+	public static int replay(final File pattern, final StitchImage image) throws IOException {
+		final Path journal = getFile(pattern).toPath();
+		if (!Files.exists(journal)) {
+			return 0;
+		}
+		try (InputStream in = Files.newInputStream(journal)) {
+			final DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+			if (!matches(data, header(pattern.toPath()))) {
+				return 0;
+			}
+			int records = 0;
+			for (Edit edit; (edit = read(data)) != null; records++) {
+				edit.apply(image);
+			}
+			return records;
+		}
+	}
+
+	/**
+	 * Removes the journal of the pattern file, once the pattern file holds all
+	 * of its edits.
+	 *
+	 * @param pattern - the pattern file.
+	 * @throws IOException occurs when the journal can't be removed.
+	 */
+	public static void reset(final File pattern) throws IOException {
+		Files.deleteIfExists(getFile(pattern).toPath());
+	}
+
+	/**
+	 * Finds the end of the last whole record of the journal.
+	 *
+	 * @return the length and the number of records, or null if the journal
+	 *         doesn't exist or belongs to another pattern file.
+	 */
+	private static Scan scan(final Path journal, final byte[] header) throws IOException {
+		try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ)) {
+			final DataInputStream data = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+			if (!matches(data, header)) {
+				return null;
+			}
+			final Scan scan = new Scan();
+			scan.length = HEADER_SIZE;
+			for (int length; (length = readRecordLength(data)) >= 0;) {
+				if (readRecord(data, length) == null) {
+					break;
+				}
+				scan.length += 2 * Integer.BYTES + length;
+				scan.records++;
+			}
+			return scan;
+		} catch (final NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	private static byte[] header(final Path pattern) throws IOException {
+		return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putLong(Files.size(pattern))
+				.putLong(Files.getLastModifiedTime(pattern).toMillis()).array();
+	}
+
+	private static boolean matches(final DataInputStream in, final byte[] header) throws IOException {
+		final byte[] bytes = in.readNBytes(HEADER_SIZE);
+		return Arrays.equals(bytes, header);
+	}
+
+	private static Edit read(final DataInputStream in) throws IOException {
+		final int length = readRecordLength(in);
+		if (length < 0) {
+			return null;
+		}
+		final byte[] bytes = readRecord(in, length);
+		if (bytes == null) {
+			return null;
+		}
+		try {
+			return Edit.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+		} catch (final EOFException e) {
+			return null;
+		}
+	}
+
+	private static int readRecordLength(final DataInputStream in) throws IOException {
+		try {
+			final int length = in.readInt();
+			return length >= 0 && length <= Edit.MAXIMUM_SIZE ? length : -1;
+		} catch (final EOFException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads the edit of a record and checks it against its checksum.
+	 *
+	 * @return the bytes of the edit, or null if the record is torn.
+	 */
+	private static byte[] readRecord(final DataInputStream in, final int length) throws IOException {
+		final byte[] bytes = in.readNBytes(length);
+		if (bytes.length != length) {
+			return null;
+		}
+		final CRC32 checksum = new CRC32();
+		checksum.update(bytes);
+		try {
+			return in.readInt() == (int) checksum.getValue() ? bytes : null;
+		} catch (final EOFException e) {
+			return null;
+		}
+	}
+
+	private static final class Scan {
+		private long length;
+		private int records;
+	}
+
+	/**
+	 * An edit of a pattern.
+	 */
+	public static final class Edit {
+		private static final int MAXIMUM_SIZE = 1 << 16;
+		private static final byte MARKS = 1, COLOR_LIMIT = 2;
+		private static final int COMPLETED = 1, HIGHLIGHTED = 2;
+
+		private final byte type;
+		private final StitchColor color;
+		private final int value;
+
+		private Edit(final byte type, final StitchColor color, final int value) {
+			this.type = type;
+			this.color = color;
+			this.value = value;
+		}
+
+		/**
+		 * Creates an edit that sets the completed and highlighted marks of a color
+		 * to the marks the pixel list has now.
+		 *
+		 * @param pixelList - the pixel list of the color.
+		 * @return the edit.
+		 */
+		public static Edit marks(final PixelList pixelList) {
+			return new Edit(MARKS, pixelList.getColor(),
+					(pixelList.isCompleted() ? COMPLETED : 0) | (pixelList.isHighlighted() ? HIGHLIGHTED : 0));
+		}
+
+		/**
+		 * Creates an edit that rebuilds the pattern for a color limit, as
+		 * {@link StitchImage#setColorLimit(int)} does.
+		 *
+		 * @param limit - the maximum number of colors.
+		 * @return the edit.
+		 */
+		public static Edit colorLimit(final int limit) {
+			return new Edit(COLOR_LIMIT, null, limit);
+		}
+
+		private void apply(final StitchImage image) {
+			if (type == COLOR_LIMIT) {
+				image.setColorLimit(value);
+				return;
+			}
+			final PixelList pixelList = image.findPixelList(color);
+			// The journal may hold a color a later color limit dropped.
+			if (pixelList != null) {
+				pixelList.setCompleted((value & COMPLETED) != 0);
+				pixelList.setHighlighted((value & HIGHLIGHTED) != 0);
+			}
+		}
+
+		private void write(final DataOutputStream out) throws IOException {
+			out.writeByte(type);
+			if (type == MARKS) {
+				out.writeInt(color.getRGB());
+				out.writeUTF(color.getName());
+				out.writeByte(value);
+			} else {
+				out.writeInt(value);
+			}
+		}
+
+		private static Edit read(final DataInputStream in) throws IOException {
+			final byte type = in.readByte();
+			if (type == MARKS) {
+				final int rgb = in.readInt();
+				final StitchColor color = ColorRegistry.intern(new StitchColor(rgb, in.readUTF()));
+				return new Edit(MARKS, color, in.readByte());
+			} else if (type == COLOR_LIMIT) {
+				return new Edit(COLOR_LIMIT, null, in.readInt());
+			}
+			return null;
+		}
+	}
+
+	private PatternJournal() {
+		throw new AssertionError("Singleton class should not be accessed by constructor.");
+	}
+}
@@ -1,33 +1,29 @@
 package com.stitch.converter.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.TreeSet;
 
+/**
+ * The cells of one color of a {@link StitchImage}. The cells themselves are
+ * kept in the grid of the image, so the list only holds the color, its marks
+ * and the number of cells.
+ */
 public class PixelList implements Serializable, Comparable<PixelList> {
 	private static final long serialVersionUID = 1L;
-	private final StitchColor color;
+	private StitchColor color;
 	private int index = -1;
 	private boolean isHighlighted = false, isCompleted = false;
-	private final TreeSet<Pixel> pixelSet;
+	// The value of the cells of this color in the grid of the image.
+	private int slot = -1;
+	private transient StitchImage image;
+	private transient int count = 0;
+	// The cells of lists saved before the grid existed, until the image moves them into its grid.
+	private transient TreeSet<Pixel> legacyPixels;
 
 	public PixelList(final StitchColor color) {
 		this.color = color;
-		pixelSet = new TreeSet<Pixel>();
-	}
-
-	public void add(final int x, final int y) {
-		final Pixel pixel = new Pixel(x, y, color);
-		if (pixelSet.contains(pixel)) {
-			return;
-		}
-		pixelSet.add(pixel);
-	}
-
-	public void add(final Pixel pixel) {
-		if (pixelSet.contains(pixel)) {
-			return;
-		}
-		pixelSet.add(pixel);
 	}
 
 	@Override
@@ -57,7 +53,7 @@ public class PixelList implements Serializable, Comparable<PixelList> {
 	}
 
 	public int getCount() {
-		return pixelSet.size();
+		return count;
 	}
 
 	public int getIndex() {
@@ -67,10 +63,6 @@ public class PixelList implements Serializable, Comparable<PixelList> {
 		return index;
 	}
 
-	public TreeSet<Pixel> getPixelSet() {
-		return pixelSet;
-	}
-
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -79,12 +71,11 @@ public class PixelList implements Serializable, Comparable<PixelList> {
 		result = prime * result + index;
 		result = prime * result + (isCompleted ? 1231 : 1237);
 		result = prime * result + (isHighlighted ? 1231 : 1237);
-		result = prime * result + ((pixelSet == null) ? 0 : pixelSet.hashCode());
 		return result;
 	}
 
 	public boolean hasPixel(final Pixel pixel) {
-		return pixelSet.contains(pixel);
+		return image != null && image.getPixelList(pixel.getX(), pixel.getY()) == this;
 	}
 
 	public boolean isCompleted() {
@@ -95,12 +86,6 @@ public class PixelList implements Serializable, Comparable<PixelList> {
 		return isHighlighted;
 	}
 
-	public void setColor(final StitchColor color) {
-		for (final Pixel pixel : pixelSet) {
-			pixel.setColor(color);
-		}
-	}
-
 	public void setCompleted(final boolean isCompleted) {
 		this.isCompleted = isCompleted;
 	}
@@ -115,9 +100,41 @@ public class PixelList implements Serializable, Comparable<PixelList> {
 
 	@Override
 	public String toString() {
-		return new StringBuilder("PixelList [color=").append(color).append(", pixelList=").append(pixelSet)
+		return new StringBuilder("PixelList [color=").append(color).append(", count=").append(count)
 				.append(", isHighlighted=").append(isHighlighted).append(", isCompleted=").append(isCompleted)
 				.append(", index=").append(index).append("]").toString();
 	}
 
+	void attach(final StitchImage image, final int slot) {
+		this.image = image;
+		this.slot = slot;
+	}
+
+	int getSlot() {
+		return slot;
+	}
+
+	void addCount(final int difference) {
+		count += difference;
+	}
+
+	TreeSet<Pixel> takeLegacyPixels() {
+		final TreeSet<Pixel> pixels = legacyPixels;
+		legacyPixels = null;
+		return pixels;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+		final ObjectInputStream.GetField fields = in.readFields();
+		color = (StitchColor) fields.get("color", null);
+		index = fields.get("index", -1);
+		isHighlighted = fields.get("isHighlighted", false);
+		isCompleted = fields.get("isCompleted", false);
+		slot = fields.get("slot", -1);
+		// Lists saved before the grid existed kept their own cells.
+		if (fields.getObjectStreamClass().getField("pixelSet") != null) {
+			legacyPixels = (TreeSet<Pixel>) fields.get("pixelSet", null);
+		}
+	}
 }
@@ -1,5 +1,7 @@
 package com.stitch.converter.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 import javafx.scene.paint.Color;
@@ -11,12 +13,19 @@ public class StitchColor implements Serializable, Cloneable, Comparable<StitchCo
 	private final int red, green, blue;
 	private transient Color fxColor = null;
 	private transient String toString;
+	// The packed RGB value, the hash code and the name as a number, which never change.
+	private transient int rgb, hashCode;
+	private transient boolean isNumbered;
+	private transient int number;
+	// The position in the ColorRegistry, or -1 if the color isn't canonical.
+	private transient int ordinal = -1;
 
 	public StitchColor(final int rgb, final String name) {
 		red = (rgb >> 16) & 0xFF;
 		green = (rgb >> 8) & 0xFF;
 		blue = (rgb >> 0) & 0xFF;
 		this.name = name;
+		initialize();
 	}
 
 	public StitchColor(final int red, final int green, final int blue, final String name) {
@@ -27,6 +36,7 @@ public class StitchColor implements Serializable, Cloneable, Comparable<StitchCo
 		this.green = green;
 		this.blue = blue;
 		this.name = name;
+		initialize();
 	}
 
 	public StitchColor(final Color color, final String name) {
@@ -41,10 +51,29 @@ public class StitchColor implements Serializable, Cloneable, Comparable<StitchCo
 		return fxColor;
 	}
 
+	private void initialize() {
+		rgb = (red << 16) | (green << 8) | blue;
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + blue;
+		result = prime * result + green;
+		result = prime * result + ((name == null) ? 0 : name.hashCode());
+		result = prime * result + red;
+		hashCode = result;
+		try {
+			number = Integer.parseInt(name);
+			isNumbered = true;
+		} catch (final NumberFormatException e) {
+			isNumbered = false;
+		}
+	}
+
 	@Override
 	public Object clone() {
 		try {
-			return super.clone();
+			final StitchColor clone = (StitchColor) super.clone();
+			clone.ordinal = -1;
+			return clone;
 		} catch (CloneNotSupportedException e) {
 			throw new AssertionError();
 		}
@@ -52,13 +81,13 @@ public class StitchColor implements Serializable, Cloneable, Comparable<StitchCo
 
 	@Override
 	public int compareTo(final StitchColor target) {
-		try {
-			int integerName = Integer.parseInt(this.getName());
-			int targetIntegerName = Integer.parseInt(target.getName());
-			return Integer.compare(integerName, targetIntegerName);
-		} catch (final NumberFormatException e) {
-			return this.getName().compareTo(target.getName());
+		if (this == target) {
+			return 0;
+		}
+		if (isNumbered && target.isNumbered) {
+			return Integer.compare(number, target.number);
 		}
+		return this.getName().compareTo(target.getName());
 	}
 
 	@Override
@@ -80,7 +109,20 @@ public class StitchColor implements Serializable, Cloneable, Comparable<StitchCo
 	}
 
 	public int getRGB() {
-		return red << 16 + green << 8 + blue;
+		return rgb;
+	}
+
+	/**
+	 * Gets the position of the color in the {@link ColorRegistry}.
+	 *
+	 * @return the ordinal, or -1 if the color isn't canonical.
+	 */
+	public int getOrdinal() {
+		return ordinal;
+	}
+
+	void setOrdinal(final int ordinal) {
+		this.ordinal = ordinal;
 	}
 
 	public int getBlue() {
@@ -105,13 +147,7 @@ public class StitchColor implements Serializable, Cloneable, Comparable<StitchCo
 
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + blue;
-		result = prime * result + green;
-		result = prime * result + ((name == null) ? 0 : name.hashCode());
-		result = prime * result + red;
-		return result;
+		return hashCode;
 	}
 
 	@Override
@@ -122,4 +158,16 @@ public class StitchColor implements Serializable, Cloneable, Comparable<StitchCo
 		}
 		return toString;
 	}
+
+	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		initialize();
+	}
+
+	/**
+	 * Replaces every color read from a file by the canonical one.
+	 */
+	private Object readResolve() {
+		return ColorRegistry.intern(this);
+	}
 }
@@ -1,29 +1,65 @@
 package com.stitch.converter.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.function.Supplier;
 
-import javafx.scene.image.PixelWriter;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.WritableImage;
-import javafx.scene.paint.Color;
 
+/**
+ * A converted pattern. Every cell holds the slot of its color in a grid of
+ * shorts, and the pixel list of each color is a view over the grid that only
+ * keeps the number of its cells.
+ */
 public class StitchImage implements Serializable {
 	private static final long serialVersionUID = 1L;
+	private static final short EMPTY = -1;
 
 	private final TreeMap<StitchColor, Integer> alternateColors;
 
 	private StitchColor background = new StitchColor(0xFFFFFF, "");
+	private ColorHierarchy colorHierarchy = null;
 	private transient ArrayList<StitchColor> colorList = null;
 
 	private transient WritableImage fxImage = null;
 
+	// The slot of the color of every cell, row by row, or EMPTY.
+	private short[] grid = null;
+	// Whether a snapshot shares the grid, which is then copied before it changes.
+	private transient boolean isGridShared = false;
+	// The pixel list of every slot.
+	private transient PixelList[] palette = new PixelList[0];
+
+	/*
+	 * The pixel lists by ordinal of their canonical color, by RGB value and by
+	 * name, built with the indices of the lists when the lists are first looked
+	 * up after they change.
+	 */
+	private transient PixelList[] pixelListByOrdinal = null;
+	private transient HashMap<Integer, PixelList> pixelListByRGB = null;
+	private transient HashMap<String, PixelList> pixelListByName = null;
+
+	/*
+	 * The file of an opened pattern while some of its rows or its color
+	 * hierarchy are still only in the file.
+	 */
+	private transient volatile PatternFile.Source rowSource = null, hierarchySource = null;
+	// Builds the color hierarchy of a converted pattern the first time it is needed.
+	private transient volatile Supplier<ColorHierarchy> hierarchyBuilder = null;
+
 	private transient boolean isChanged = false;
 
 	private boolean numberVisible = true;
@@ -35,13 +71,37 @@ public class StitchImage implements Serializable {
 		alternateColors = new TreeMap<StitchColor, Integer>();
 	}
 
+	/**
+	 * Sets the color of the cell of the pixel.
+	 *
+	 * @param pixel - the pixel, inside the size of the image.
+	 */
 	public void add(final Pixel pixel) {
-		final PixelList pixelList = new PixelList(pixel.getColor());
-		if (pixelListSet.contains(pixelList)) {
-			getPixelListByColor(pixel.getColor()).add(pixel);
+		final int width = (int) this.width;
+		if (grid == null || pixel.getX() >= width || pixel.getY() >= (int) height) {
+			throw new IllegalStateException(String.format("Pixel outside of the image: %s", pixel));
+		}
+		final int cell = pixel.getY() * width + pixel.getX();
+		loadRows(pixel.getY(), pixel.getY() + 1);
+		ownGrid();
+		PixelList pixelList = findPixelList(pixel.getColor());
+		if (pixelList == null) {
+			pixelList = new PixelList(pixel.getColor());
+			attach(pixelList);
+		}
+		if (grid[cell] != EMPTY) {
+			palette[grid[cell]].addCount(-1);
+		}
+		grid[cell] = (short) pixelList.getSlot();
+		pixelList.addCount(1);
+		fxImage = null;
+	}
+
+	public void addAlternateColor(final StitchColor color, final int count) {
+		if (alternateColors.containsKey(color)) {
+			alternateColors.put(color, alternateColors.get(color) + count);
 		} else {
-			pixelList.add(pixel);
-			pixelListSet.add(pixelList);
+			alternateColors.put(color, count);
 		}
 	}
 
@@ -53,24 +113,6 @@ public class StitchImage implements Serializable {
 		}
 	}
 
-	public void calculateSize() {
-		int width = -1, height = -1;
-		for (final PixelList pixelList : pixelListSet) {
-			for (final Pixel pixel : pixelList.getPixelSet()) {
-				int x = pixel.getX();
-				int y = pixel.getY();
-				if (x > width) {
-					width = x;
-				}
-				if (y > height) {
-					height = y;
-				}
-			}
-		}
-		this.width = width + 1;
-		this.height = height + 1;
-	}
-
 	public List<StitchColor> getAlternate() {
 		final List<Entry<StitchColor, Integer>> list = new ArrayList<>(alternateColors.entrySet());
 		list.sort(Entry.comparingByValue());
@@ -85,6 +127,50 @@ public class StitchImage implements Serializable {
 		return background;
 	}
 
+	/**
+	 * Gets the color hierarchy, building it first if it is not built yet.
+	 *
+	 * @return the hierarchy, or null if the pattern has none.
+	 */
+	public ColorHierarchy getColorHierarchy() {
+		if (hierarchySource != null || hierarchyBuilder != null) {
+			loadHierarchy();
+		}
+		return colorHierarchy;
+	}
+
+	/**
+	 * Gets the color hierarchy only if it is built or read already, so it can be
+	 * saved without building one that was never used.
+	 *
+	 * @return the hierarchy, or null if it is not built.
+	 */
+	public ColorHierarchy getBuiltColorHierarchy() {
+		if (hierarchySource != null) {
+			loadHierarchy();
+		}
+		return colorHierarchy;
+	}
+
+	/**
+	 * Checks whether the color hierarchy is built, so getting it won't build
+	 * it first. A built hierarchy may still have to be read from the file.
+	 *
+	 * @return false if {@link #getColorHierarchy()} builds the hierarchy.
+	 */
+	public boolean isColorHierarchyBuilt() {
+		return hierarchyBuilder == null;
+	}
+
+	/**
+	 * Checks whether the pattern has a color hierarchy or can build one.
+	 *
+	 * @return true if {@link #getColorHierarchy()} returns a hierarchy.
+	 */
+	public boolean hasColorHierarchy() {
+		return hierarchyBuilder != null || getBuiltColorHierarchy() != null;
+	}
+
 	public ArrayList<StitchColor> getColorList() {
 		if (colorList == null) {
 			colorList = new ArrayList<>();
@@ -97,60 +183,70 @@ public class StitchImage implements Serializable {
 
 	public WritableImage getFXImage() {
 		if (fxImage == null) {
-			calculateSize();
-			fxImage = new WritableImage((int) width, (int) height);
-			final PixelWriter pixelWriter = fxImage.getPixelWriter();
-			for (final PixelList pixelList : pixelListSet) {
-				final Color color = pixelList.getColor().asFX();
-				for (final Pixel pixel : pixelList.getPixelSet()) {
-					try {
-						pixelWriter.setColor(pixel.getX(), pixel.getY(), color);
-					} catch(IndexOutOfBoundsException e) {
-						e.printStackTrace();
-					}
+			final int width = (int) this.width, height = (int) this.height;
+			loadRows(0, height);
+			fxImage = new WritableImage(width, height);
+			final int[] colors = new int[palette.length];
+			for (int slot = 0; slot < palette.length; slot++) {
+				if (palette[slot] != null) {
+					colors[slot] = 0xFF000000 | palette[slot].getColor().getRGB();
+				}
+			}
+			final int[] argb = new int[width * height];
+			for (int cell = 0; cell < argb.length; cell++) {
+				if (grid[cell] != EMPTY) {
+					argb[cell] = colors[grid[cell]];
 				}
 			}
+			fxImage.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), argb, 0, width);
 		}
 		return fxImage;
 	}
 
 	public double getHeight() {
-		if (width == -1 || height == -1) {
-			calculateSize();
-		}
 		return height;
 	}
 
+	/**
+	 * Gets the pixel list of the color of the cell.
+	 *
+	 * @param x - the column of the cell.
+	 * @param y - the row of the cell.
+	 * @return the pixel list, or null if the cell is outside the image or empty.
+	 */
+	public PixelList getPixelList(final int x, final int y) {
+		final int width = (int) this.width;
+		if (grid == null || x < 0 || y < 0 || x >= width || y >= (int) height) {
+			return null;
+		}
+		loadRows(y, y + 1);
+		final short slot = grid[y * width + x];
+		return slot == EMPTY ? null : palette[slot];
+	}
+
 	public PixelList getPixelListByColor(final StitchColor color) {
-		for (final PixelList pixelList : pixelListSet) {
-			if (pixelList.getColor().equals(color)) {
-				return pixelList;
-			}
+		final PixelList pixelList = indexPixelLists().get(color.getRGB());
+		if (pixelList == null) {
+			throw new NoSuchElementException(String.format("No Such PixelList: %s", color));
 		}
-		throw new NoSuchElementException(String.format("No Such PixelList: %s", color));
+		return pixelList;
 	}
 
 	public PixelList getPixelListByName(final String name) {
-		for (final PixelList pixelList : pixelListSet) {
-			if (pixelList.getColor().getName().equals(name)) {
-				return pixelList;
-			}
+		indexPixelLists();
+		final PixelList pixelList = pixelListByName.get(name);
+		if (pixelList == null) {
+			throw new NoSuchElementException(String.format("No Such PixelList: %s", name));
 		}
-		throw new NoSuchElementException(String.format("No Such PixelList: %s", name));
+		return pixelList;
 	}
 
 	public Collection<PixelList> getPixelLists() {
-		int index = 0;
-		for (final PixelList pixelList : pixelListSet) {
-			pixelList.setIndex(index++);
-		}
+		indexPixelLists();
 		return pixelListSet;
 	}
 
 	public double getWidth() {
-		if (width == -1 || height == -1) {
-			calculateSize();
-		}
 		return width;
 	}
 
@@ -162,14 +258,174 @@ public class StitchImage implements Serializable {
 		return numberVisible;
 	}
 
+	/**
+	 * Makes sure the rows are in the grid. The rows of an opened pattern are
+	 * read from its file when first used, which happens on its own for single
+	 * cells, but reading all rows shown or exported at once is faster.
+	 *
+	 * @param fromRow - the first row.
+	 * @param toRow   - the row after the last row.
+	 */
+	public void loadRows(final int fromRow, final int toRow) {
+		final PatternFile.Source source = rowSource;
+		if (source != null && source.readRows(grid, fromRow, toRow)) {
+			rowSource = null;
+		}
+	}
+
+	public void remove(final StitchColor color) {
+		final PixelList pixelList = findPixelList(color);
+		if (pixelList == null) {
+			return;
+		}
+		loadRows(0, (int) height);
+		ownGrid();
+		final short slot = (short) pixelList.getSlot();
+		for (int cell = 0; cell < grid.length; cell++) {
+			if (grid[cell] == slot) {
+				grid[cell] = EMPTY;
+			}
+		}
+		palette[slot] = null;
+		pixelListSet.remove(pixelList);
+		pixelListsChanged();
+		fxImage = null;
+	}
+
 	public void removeAlternate(final StitchColor color) {
 		alternateColors.remove(color);
 	}
 
+	/**
+	 * Copies the image for saving it while it is still edited. The copy shares
+	 * the grid until either image changes a cell, and copies only the pixel
+	 * lists and the alternate colors, so it is cheap to take for any size.
+	 *
+	 * @return the copy.
+	 */
+	public StitchImage snapshot() {
+		final StitchImage snapshot = new StitchImage();
+		snapshot.alternateColors.putAll(alternateColors);
+		snapshot.background = background;
+		snapshot.numberVisible = numberVisible;
+		snapshot.width = width;
+		snapshot.height = height;
+		snapshot.grid = grid;
+		snapshot.colorHierarchy = colorHierarchy;
+		snapshot.rowSource = rowSource;
+		snapshot.hierarchySource = hierarchySource;
+		snapshot.hierarchyBuilder = hierarchyBuilder;
+		isGridShared = snapshot.isGridShared = grid != null;
+		final PixelList[] palette = new PixelList[this.palette.length];
+		for (int slot = 0; slot < palette.length; slot++) {
+			if (this.palette[slot] != null) {
+				palette[slot] = new PixelList(this.palette[slot].getColor());
+				palette[slot].setCompleted(this.palette[slot].isCompleted());
+				palette[slot].setHighlighted(this.palette[slot].isHighlighted());
+				palette[slot].addCount(this.palette[slot].getCount());
+				snapshot.pixelListSet.add(palette[slot]);
+			}
+		}
+		snapshot.attachPalette(palette);
+		return snapshot;
+	}
+
 	public void setBackground(final StitchColor background) {
 		this.background = background;
 	}
 
+	public void setColorHierarchy(final ColorHierarchy colorHierarchy) {
+		hierarchySource = null;
+		hierarchyBuilder = null;
+		this.colorHierarchy = colorHierarchy;
+	}
+
+	/**
+	 * Sets how the color hierarchy is built when it is first needed, instead of
+	 * building it right away.
+	 *
+	 * @param hierarchyBuilder - builds the hierarchy.
+	 */
+	public void setColorHierarchy(final Supplier<ColorHierarchy> hierarchyBuilder) {
+		hierarchySource = null;
+		colorHierarchy = null;
+		this.hierarchyBuilder = hierarchyBuilder;
+	}
+
+	/**
+	 * Rebuilds the pixels from the color hierarchy for the color limit. The
+	 * colors left keep their highlighted and completed marks.
+	 *
+	 * @param limit - the maximum number of colors.
+	 */
+	public void setColorLimit(final int limit) {
+		final ColorHierarchy colorHierarchy = getColorHierarchy();
+		if (colorHierarchy == null) {
+			return;
+		}
+		final StitchColor[] colors = new StitchColor[colorHierarchy.getColorCount()];
+		for (int index = 0; index < colors.length; index++) {
+			colors[index] = colorHierarchy.getColor(index);
+		}
+		final HashMap<StitchColor, PixelList> previous = new HashMap<>();
+		for (final PixelList pixelList : pixelListSet) {
+			previous.put(pixelList.getColor(), pixelList);
+		}
+		setPixels(colors, colorHierarchy.getGrid(limit));
+		for (final PixelList pixelList : palette) {
+			final PixelList marked = previous.get(pixelList.getColor());
+			if (marked != null) {
+				pixelList.setCompleted(marked.isCompleted());
+				pixelList.setHighlighted(marked.isHighlighted());
+			}
+		}
+	}
+
+	/**
+	 * Replaces every cell of the image, and every pixel list with one for
+	 * each color used.
+	 *
+	 * @param colors  - the colors.
+	 * @param indices - the index of the color of every cell in the colors, row
+	 *                by row, or -1 for an empty cell.
+	 */
+	public void setPixels(final StitchColor[] colors, final int[] indices) {
+		if (indices.length != (int) width * (int) height) {
+			throw new IllegalArgumentException(String.format("%d cells for a %dx%d image", indices.length, (int) width, (int) height));
+		}
+		final int[] slots = new int[colors.length];
+		Arrays.fill(slots, EMPTY);
+		final List<PixelList> pixelLists = new ArrayList<>();
+		rowSource = null;
+		isGridShared = false;
+		grid = new short[indices.length];
+		for (int cell = 0; cell < indices.length; cell++) {
+			final int index = indices[cell];
+			if (index < 0) {
+				grid[cell] = EMPTY;
+				continue;
+			}
+			if (slots[index] == EMPTY) {
+				if (pixelLists.size() == Short.MAX_VALUE) {
+					throw new IllegalArgumentException("Too many colors");
+				}
+				slots[index] = pixelLists.size();
+				pixelLists.add(new PixelList(colors[index]));
+			}
+			grid[cell] = (short) slots[index];
+			pixelLists.get(slots[index]).addCount(1);
+		}
+		palette = new PixelList[pixelLists.size()];
+		pixelListSet.clear();
+		for (int slot = 0; slot < palette.length; slot++) {
+			palette[slot] = pixelLists.get(slot);
+			palette[slot].attach(this, slot);
+			pixelListSet.add(palette[slot]);
+		}
+		pixelListsChanged();
+		fxImage = null;
+	}
+
 	public void setChanged(final boolean changeStatus) {
 		isChanged = changeStatus;
 	}
@@ -178,9 +434,216 @@ public class StitchImage implements Serializable {
 		this.numberVisible = numberVisible;
 	}
 
+	/**
+	 * Sets the size of the image, and empties every cell if it changes.
+	 *
+	 * @param width  - the width.
+	 * @param height - the height.
+	 */
 	public void setSize(final int width, final int height) {
+		if (grid == null || width != (int) this.width || height != (int) this.height) {
+			rowSource = null;
+			isGridShared = false;
+			grid = new short[width * height];
+			Arrays.fill(grid, EMPTY);
+			palette = new PixelList[0];
+			pixelListSet.clear();
+			pixelListsChanged();
+			fxImage = null;
+		}
+		this.width = width;
+		this.height = height;
+	}
+
+	PixelList findPixelList(final StitchColor color) {
+		indexPixelLists();
+		final int ordinal = color.getOrdinal();
+		if (0 <= ordinal && ordinal < pixelListByOrdinal.length && pixelListByOrdinal[ordinal] != null) {
+			return pixelListByOrdinal[ordinal];
+		}
+		// The set orders the lists by name, so the name alone tells whether the color has a list.
+		return pixelListByName.get(color.getName());
+	}
+
+	/**
+	 * Numbers the pixel lists in order and indexes them, unless nothing
+	 * changed since the last time.
+	 *
+	 * @return the pixel lists by RGB value.
+	 */
+	private HashMap<Integer, PixelList> indexPixelLists() {
+		if (pixelListByRGB == null) {
+			pixelListByOrdinal = new PixelList[ColorRegistry.size()];
+			pixelListByRGB = new HashMap<>();
+			pixelListByName = new HashMap<>();
+			int index = 0;
+			for (final PixelList pixelList : pixelListSet) {
+				pixelList.setIndex(index++);
+				final int ordinal = pixelList.getColor().getOrdinal();
+				if (ordinal >= 0 && ordinal < pixelListByOrdinal.length) {
+					pixelListByOrdinal[ordinal] = pixelList;
+				}
+				// Like the scans they replace, the first list of a duplicated key wins.
+				pixelListByRGB.putIfAbsent(pixelList.getColor().getRGB(), pixelList);
+				pixelListByName.putIfAbsent(pixelList.getColor().getName(), pixelList);
+			}
+		}
+		return pixelListByRGB;
+	}
+
+	private void pixelListsChanged() {
+		colorList = null;
+		pixelListByOrdinal = null;
+		pixelListByRGB = null;
+		pixelListByName = null;
+	}
+
+	private void attach(final PixelList pixelList) {
+		int slot = 0;
+		while (slot < palette.length && palette[slot] != null) {
+			slot++;
+		}
+		if (slot == Short.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many colors");
+		}
+		if (slot == palette.length) {
+			palette = Arrays.copyOf(palette, palette.length + 1);
+		}
+		palette[slot] = pixelList;
+		pixelList.attach(this, slot);
+		pixelListSet.add(pixelList);
+		pixelListsChanged();
+	}
+
+	short[] getGrid() {
+		loadRows(0, (int) height);
+		return grid;
+	}
+
+	PixelList[] getPalette() {
+		return palette;
+	}
+
+	TreeMap<StitchColor, Integer> getAlternateColors() {
+		return alternateColors;
+	}
+
+	/**
+	 * Replaces the size, the cells and the pixel lists of the image with ones
+	 * read from a {@link PatternFile}.
+	 *
+	 * @param width   - the width.
+	 * @param height  - the height.
+	 * @param palette - the pixel list of every slot, counting its cells.
+	 * @param grid    - the slot of the color of every cell, row by row, or -1.
+	 * @param source  - the file to read the rows and the hierarchy from when
+	 *                first used, or null if the grid is read.
+	 */
+	void restore(final int width, final int height, final PixelList[] palette, final short[] grid,
+			final PatternFile.Source source) {
 		this.width = width;
 		this.height = height;
+		this.grid = grid;
+		isGridShared = false;
+		colorHierarchy = null;
+		rowSource = source;
+		hierarchySource = source;
+		hierarchyBuilder = null;
+		pixelListSet.clear();
+		pixelListSet.addAll(Arrays.asList(palette));
+		attachPalette(palette);
+		pixelListsChanged();
+		// The file doesn't keep the indices of the lists, which are numbered in order.
+		indexPixelLists();
+		fxImage = null;
+	}
+
+	private void ownGrid() {
+		if (isGridShared) {
+			// Rows still in the file are read into the shared grid first, so both images get them.
+			loadRows(0, (int) height);
+			grid = grid.clone();
+			isGridShared = false;
+		}
+	}
+
+	private synchronized void loadHierarchy() {
+		final PatternFile.Source source = hierarchySource;
+		if (source != null) {
+			colorHierarchy = source.readHierarchy();
+			hierarchySource = null;
+		}
+		final Supplier<ColorHierarchy> builder = hierarchyBuilder;
+		if (builder != null) {
+			colorHierarchy = builder.get();
+			hierarchyBuilder = null;
+		}
+	}
+
+	private void attachPalette(final PixelList[] palette) {
+		this.palette = palette;
+		for (int slot = 0; slot < palette.length; slot++) {
+			if (palette[slot] != null) {
+				palette[slot].attach(this, slot);
+			}
+		}
+	}
+
+	private void writeObject(final ObjectOutputStream out) throws IOException {
+		loadRows(0, (int) height);
+		getBuiltColorHierarchy();
+		out.defaultWriteObject();
+	}
+
+	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (grid == null) {
+			readLegacyPixels();
+		}
+		int slots = 0;
+		for (final PixelList pixelList : pixelListSet) {
+			slots = Math.max(slots, pixelList.getSlot() + 1);
+		}
+		final PixelList[] palette = new PixelList[slots];
+		for (final PixelList pixelList : pixelListSet) {
+			palette[pixelList.getSlot()] = pixelList;
+		}
+		attachPalette(palette);
+		for (final short slot : grid) {
+			if (slot != EMPTY) {
+				palette[slot].addCount(1);
+			}
+		}
+	}
+
+	/**
+	 * Moves the cells of images saved before the grid existed, which every pixel
+	 * list kept as its own set of pixels, into the grid.
+	 */
+	private void readLegacyPixels() {
+		final List<TreeSet<Pixel>> pixelSets = new ArrayList<>();
+		int right = -1, bottom = -1;
+		for (final PixelList pixelList : pixelListSet) {
+			final TreeSet<Pixel> pixels = pixelList.takeLegacyPixels();
+			pixelSets.add(pixels != null ? pixels : new TreeSet<>());
+			for (final Pixel pixel : pixelSets.get(pixelSets.size() - 1)) {
+				right = Math.max(right, pixel.getX());
+				bottom = Math.max(bottom, pixel.getY());
+			}
+		}
+		final int width = Math.max((int) this.width, right + 1), height = Math.max((int) this.height, bottom + 1);
+		this.width = width;
+		this.height = height;
+		grid = new short[width * height];
+		Arrays.fill(grid, EMPTY);
+		int slot = 0;
+		for (final PixelList pixelList : pixelListSet) {
+			pixelList.attach(this, slot);
+			for (final Pixel pixel : pixelSets.get(slot)) {
+				grid[pixel.getY() * width + pixel.getX()] = (short) slot;
+			}
+			slot++;
+		}
 	}
 
 	@Override
@@ -5,15 +5,17 @@ import java.util.Collection;
 import java.util.HashMap;
 
 import com.stitch.converter.Preferences;
-import com.stitch.converter.model.Pixel;
 import com.stitch.converter.model.PixelList;
 import com.stitch.converter.model.StitchColor;
 import com.stitch.converter.model.StitchImage;
 
+import javafx.geometry.Bounds;
 import javafx.geometry.VPos;
 import javafx.scene.CacheHint;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.ScrollPane;
+import javafx.scene.layout.Region;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
 import javafx.scene.text.Text;
@@ -43,13 +45,32 @@ public class CanvasController {
 	
 	private final Font originalFont;
 	private final HashMap<Integer, Font> fontBySize = new HashMap<>();
+
+	// The scroll pane the canvas is a viewport of, or null if the canvas holds the whole pattern.
+	private final ScrollPane scrollPane;
+	// The position of the canvas in the pattern.
+	private double viewX = 0, viewY = 0;
 	
 	public CanvasController(final StitchImage image, final Canvas canvas) {
+		this(image, canvas, null);
+	}
+
+	/**
+	 * Creates a controller that draws the pattern on a canvas the size of the
+	 * viewport of the scroll pane, which follows the scroll bars, so only the
+	 * cells on the screen are drawn.
+	 *
+	 * @param image      - the pattern.
+	 * @param canvas     - the canvas, a child of the content of the scroll pane.
+	 * @param scrollPane - the scroll pane, whose content is a {@link Region} that
+	 *                   is sized to the whole pattern.
+	 */
+	public CanvasController(final StitchImage image, final Canvas canvas, final ScrollPane scrollPane) {
 		this.image = image;
 		this.canvas = canvas;
+		this.scrollPane = scrollPane;
 		this.context = canvas.getGraphicsContext2D();
-		this.canvas.setWidth(image.getWidth() * scale + 2 * margin);
-		this.canvas.setHeight(image.getHeight() * scale + 2 * margin);
+		resize();
 		background = Preferences.getColor("completedFillColor", new StitchColor(255, 255, 0, "")).asFX();
 		highlightAlternateColor = Preferences.getColor("highlightAlternateColor", new StitchColor(128, 255, 128, "")).asFX();
 		isHighlightAlternate = Preferences.getBoolean("isHighlightAlternate", false);
@@ -61,52 +82,58 @@ public class CanvasController {
 	}
 
 	private void drawGrid(int x, int y, int width, int height, boolean isHighlightExist) {
+		// Lines are counted from the corner of the pattern, so every fifth and tenth line stays put while scrolling.
 		context.setFill(isHighlightExist ? BRIGHT_GRAY_3 : DARK_GRAY_3);
-		for (int count = 0; count <= width; count++) {
-			if (count % 5 == 0) {
+		for (int column = x; column <= x + width; column++) {
+			if (column % 5 == 0) {
 				continue;
 			}
-			context.fillRect((int) ((x + count) * scale) + margin, (int) (y * scale) + margin, 1, height * scale);
+			context.fillRect((int) (column * scale) + margin, (int) (y * scale) + margin, 1, height * scale);
 		}
-		for (int count = 0; count <= height; count++) {
-			if (count % 5 == 0) {
+		for (int row = y; row <= y + height; row++) {
+			if (row % 5 == 0) {
 				continue;
 			}
-			context.fillRect((int) (x * scale) + margin, (int) ((y + count) * scale) + margin, width * scale, 1);
+			context.fillRect((int) (x * scale) + margin, (int) (row * scale) + margin, width * scale, 1);
 		}
 
 		context.setFill(isHighlightExist ? BRIGHT_GRAY_2 : DARK_GRAY_2);
-		for (int count = 5; count <= width; count += 10) {
-			context.fillRect((int) ((x + count) * scale) + margin, (int) (y * scale) + margin, 1, height * scale);
+		for (int column = nextLine(x, 5); column <= x + width; column += 10) {
+			context.fillRect((int) (column * scale) + margin, (int) (y * scale) + margin, 1, height * scale);
 		}
-		for (int count = 5; count <= height; count += 10) {
-			context.fillRect((int) (x * scale) + margin, (int) ((y + count) * scale) + margin, width * scale, 1);
+		for (int row = nextLine(y, 5); row <= y + height; row += 10) {
+			context.fillRect((int) (x * scale) + margin, (int) (row * scale) + margin, width * scale, 1);
 		}
 
 		context.setFill(isHighlightExist ? BRIGHT_GRAY_1 : DARK_GRAY_1);
-		for (int count = 0; count <= width; count += 10) {
-			context.fillRect((int) ((x + count) * scale) + margin, (int) (y * scale) + margin, 1, height * scale);
+		for (int column = nextLine(x, 0); column <= x + width; column += 10) {
+			context.fillRect((int) (column * scale) + margin, (int) (y * scale) + margin, 1, height * scale);
 		}
-		for (int count = 0; count <= height; count += 10) {
-			context.fillRect((int) (x * scale) + margin, (int) ((y + count) * scale) + margin, width * scale, 1);
+		for (int row = nextLine(y, 0); row <= y + height; row += 10) {
+			context.fillRect((int) (x * scale) + margin, (int) (row * scale) + margin, width * scale, 1);
 		}
 	}
 
-	private void drawIndex() {
+	private static int nextLine(final int from, final int remainder) {
+		return from + Math.floorMod(remainder - from, 10);
+	}
+
+	private void drawIndex(final int fromX, final int fromY, final int toX, final int toY) {
 		context.setFill(Color.BLACK);
 		context.setTextAlign(TextAlignment.CENTER);
 		context.setTextBaseline(VPos.CENTER);
-		for (final PixelList pixelList : image.getPixelLists()) {
-			if (pixelList.isCompleted() == true) {
-				continue;
-			}
-			for (final Pixel pixel : pixelList.getPixelSet()) {
-				if (pixel.getColor().equals(image.getBackground())) {
+		for (int y = fromY; y < toY; y++) {
+			for (int x = fromX; x < toX; x++) {
+				final PixelList pixelList = image.getPixelList(x, y);
+				if (pixelList == null || pixelList.isCompleted() == true) {
+					continue;
+				}
+				final StitchColor color = pixelList.getColor();
+				if (color.equals(image.getBackground())) {
 					continue;
 				}
 				if (isHighlightExist == false) {
-					if (pixel.getColor().getRed() + pixel.getColor().getBlue() + pixel.getColor().getGreen() < 128
-							* 3) {
+					if (color.getRed() + color.getBlue() + color.getGreen() < 128 * 3) {
 						context.setFill(Color.WHITE);
 					} else {
 						context.setFill(Color.BLACK);
@@ -114,7 +141,7 @@ public class CanvasController {
 				} else {
 					context.setFill(Color.BLACK);
 				}
-				drawString(pixel.getX(), pixel.getY(), Integer.toString(pixelList.getIndex()));
+				drawString(x, y, Integer.toString(pixelList.getIndex()));
 			}
 		}
 	}
@@ -150,6 +177,14 @@ public class CanvasController {
 		return scale;
 	}
 
+	public double getContentWidth() {
+		return image.getWidth() * scale + 2 * margin;
+	}
+
+	public double getContentHeight() {
+		return image.getHeight() * scale + 2 * margin;
+	}
+
 	final Text text = new Text();
 	private double getTextWidth(final Font font, final String input) {
 		text.setFont(font);
@@ -160,10 +195,20 @@ public class CanvasController {
 	}
 
 	public void invalidate() {
-		renderImage();
-		drawGrid(0, 0, (int) image.getWidth(), (int) image.getHeight(), isHighlightExist);
+		updateViewport();
+		final int width = (int) image.getWidth(), height = (int) image.getHeight();
+		final int fromX = toCell(viewX, width), toX = toCell(viewX + canvas.getWidth() + scale, width);
+		final int fromY = toCell(viewY, height), toY = toCell(viewY + canvas.getHeight() + scale, height);
+		// An opened pattern reads only the bands of the rows on the screen.
+		image.loadRows(fromY, toY);
+
+		context.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+		context.save();
+		context.translate(-viewX, -viewY);
+		renderImage(fromX, fromY, toX, toY);
+		drawGrid(fromX, fromY, toX - fromX, toY - fromY, isHighlightExist);
 		if (Preferences.getBoolean("drawGridNumber", true)) {
-			drawIndex();
+			drawIndex(fromX, fromY, toX, toY);
 		}
 		if(highlightX != -1 && highlightY != -1) {
 			drawHighlightPixel(highlightX, highlightY);
@@ -171,10 +216,55 @@ public class CanvasController {
 		if(isDrawDistanceCircle == true) {
 			drawDistanceCircle();
 		}
+		context.restore();
 	}
 
-	private void renderImage() {
-		context.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+	/**
+	 * Gets the cell at the position in the pattern, counted along one axis.
+	 *
+	 * @return the cell, clamped to the pattern.
+	 */
+	private int toCell(final double position, final int cells) {
+		return (int) Math.max(0, Math.min(cells, Math.floor((position - margin) / scale)));
+	}
+
+	/**
+	 * Moves the canvas to the part of the pattern the scroll pane shows, and
+	 * sizes it to that part.
+	 */
+	private void updateViewport() {
+		if (scrollPane == null) {
+			return;
+		}
+		final Bounds viewport = scrollPane.getViewportBounds();
+		final double contentWidth = getContentWidth(), contentHeight = getContentHeight();
+		viewX = Math.floor(toRatio(scrollPane.getHvalue(), scrollPane.getHmin(), scrollPane.getHmax())
+				* Math.max(0, contentWidth - viewport.getWidth()));
+		viewY = Math.floor(toRatio(scrollPane.getVvalue(), scrollPane.getVmin(), scrollPane.getVmax())
+				* Math.max(0, contentHeight - viewport.getHeight()));
+		// One more pixel covers the rounding of the scroll position.
+		canvas.setWidth(Math.max(0, Math.min(Math.ceil(viewport.getWidth()) + 1, contentWidth - viewX)));
+		canvas.setHeight(Math.max(0, Math.min(Math.ceil(viewport.getHeight()) + 1, contentHeight - viewY)));
+		canvas.relocate(viewX, viewY);
+	}
+
+	private static double toRatio(final double value, final double min, final double max) {
+		return max > min ? (value - min) / (max - min) : 0;
+	}
+
+	private void resize() {
+		if (scrollPane == null) {
+			canvas.setWidth(getContentWidth());
+			canvas.setHeight(getContentHeight());
+			return;
+		}
+		final Region content = (Region) scrollPane.getContent();
+		content.setMinSize(getContentWidth(), getContentHeight());
+		content.setPrefSize(getContentWidth(), getContentHeight());
+		content.setMaxSize(getContentWidth(), getContentHeight());
+	}
+
+	private void renderImage(final int fromX, final int fromY, final int toX, final int toY) {
 		image.setNumberVisible(Preferences.getBoolean("drawGridNumber", true));
 		isHighlightExist = false;
 		final Collection<PixelList> pixelLists = image.getPixelLists();
@@ -186,31 +276,34 @@ public class CanvasController {
 		}
 		if (isHighlightExist == true) {
 			context.setFill(darkerColor);
-			context.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+			context.fillRect(viewX, viewY, canvas.getWidth(), canvas.getHeight());
 		}
-		for (final PixelList pixelList : pixelLists) {
-			final Color pixelColor = pixelList.getColor().asFX();
-			for (final Pixel pixel : pixelList.getPixelSet()) {
+		for (int y = fromY; y < toY; y++) {
+			for (int x = fromX; x < toX; x++) {
+				final PixelList pixelList = image.getPixelList(x, y);
+				if (pixelList == null) {
+					continue;
+				}
 				if (pixelList.isCompleted() == true) {
 					context.setFill(background);
-					context.fillRect(pixel.getX() * scale + margin, pixel.getY() * scale + margin, scale, scale);
+					context.fillRect(x * scale + margin, y * scale + margin, scale, scale);
 				} else if (isHighlightExist == true) {
 					if (pixelList.isHighlighted() == true) {
-						if(isHighlightAlternate == true && (pixel.getX() + pixel.getY()) %2 == 0) {
+						if(isHighlightAlternate == true && (x + y) %2 == 0) {
 							context.setFill(highlightAlternateColor);
 						} else {
 							context.setFill(Color.WHITE);
 						}
-						context.fillRect(pixel.getX() * scale + margin, pixel.getY() * scale + margin, scale, scale);
+						context.fillRect(x * scale + margin, y * scale + margin, scale, scale);
 					} else {
-						context.setFill(pixelColor);
-						context.fillRect(margin + pixel.getX() * scale, margin + pixel.getY() * scale, scale, scale);
+						context.setFill(pixelList.getColor().asFX());
+						context.fillRect(margin + x * scale, margin + y * scale, scale, scale);
 						context.setFill(darkerColor);
-						context.fillRect(pixel.getX() * scale + margin, pixel.getY() * scale + margin, scale, scale);
+						context.fillRect(x * scale + margin, y * scale + margin, scale, scale);
 					}
 				} else {
 					context.setFill(pixelList.getColor().asFX());
-					context.fillRect(margin + pixel.getX() * scale, margin + pixel.getY() * scale, scale, scale);
+					context.fillRect(margin + x * scale, margin + y * scale, scale, scale);
 				}
 			}
 		}
@@ -218,14 +311,12 @@ public class CanvasController {
 
 	public void setMargin(final double margin) {
 		this.margin = margin;
-		canvas.setWidth(image.getWidth() * scale + 2 * margin);
-		canvas.setHeight(image.getHeight() * scale + 2 * margin);
+		resize();
 	}
 
 	public void setScale(final double scale) {
 		this.scale = scale;
-		canvas.setWidth(image.getWidth() * scale + 2 * margin);
-		canvas.setHeight(image.getHeight() * scale + 2 * margin);
+		resize();
 	}
 	
 	public void setHighlightPixel(final int x, final int y) {
@@ -11,6 +11,7 @@ import java.net.URI;
 import java.net.URL;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -22,10 +23,13 @@ import org.json.simple.parser.ParseException;
 
 import com.stitch.converter.GraphicsEngine;
 import com.stitch.converter.LogPrinter;
+import com.stitch.converter.PatternSaver;
 import com.stitch.converter.Preferences;
 import com.stitch.converter.Resources;
+import com.stitch.converter.model.ColorHierarchy;
+import com.stitch.converter.model.PatternJournal;
 import com.stitch.converter.model.StitchImage;
-import com.stitch.converter.model.Pixel;
+import com.stitch.converter.model.PixelList;
 import com.stitch.converter.model.StitchColor;
 import com.stitch.converter.model.StitchList;
 
@@ -40,13 +44,16 @@ import javafx.embed.swing.SwingFXUtils;
 import javafx.event.EventHandler;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
+import javafx.geometry.Point2D;
 import javafx.scene.Scene;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.control.Alert;
 import javafx.scene.control.ButtonType;
 import javafx.scene.control.CheckMenuItem;
+import javafx.scene.control.Label;
 import javafx.scene.control.MenuItem;
 import javafx.scene.control.ScrollPane;
+import javafx.scene.control.Slider;
 import javafx.scene.control.SplitPane;
 import javafx.scene.control.TableCell;
 import javafx.scene.control.TableColumn;
@@ -94,6 +101,11 @@ public class OverviewController extends Controller {
 	public SplitPane verticalSplitPane, horizontalSplitPane;
 	@FXML
 	public TextField zoom;
+	@FXML
+	public Label colorLimitLabel;
+	@FXML
+	public Slider colorLimit;
+	private boolean isColorLimitUpdating = false;
 
 	private int x = -1, y = -1;
 	
@@ -101,6 +113,9 @@ public class OverviewController extends Controller {
 	
     // Executor for managing threads
     private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private final PatternSaver patternSaver = new PatternSaver();
+    // The completion of the last save, which exiting waits for.
+    private CompletableFuture<Void> lastSave = CompletableFuture.completedFuture(null);
 
     public void setStage(final Stage overviewStage) {
         try {
@@ -175,8 +190,10 @@ public class OverviewController extends Controller {
 	    setupColorColumn();
 	    setupNameColumn();
 	    setupZoomHandler();
+	    setupColorLimitHandler();
 	    setupCanvasMouseHandlers();
 	    setupDistanceCircleDrawing();
+	    setupCanvasViewport();
 
 	    canvas.requestFocus();
 	}
@@ -193,7 +210,7 @@ public class OverviewController extends Controller {
 	            if (newValue && cellValue.isCompleted()) {
 	                cellValue.setCompleted(false);
 	            }
-	            setTitleChanged(true);
+	            recordEdit(PatternJournal.Edit.marks(cellValue.getPixelList()));
 	        });
 	        return property;
 	    });
@@ -211,7 +228,7 @@ public class OverviewController extends Controller {
 	            if (newValue && cellValue.isHighlighted()) {
 	                cellValue.setHighlight(false);
 	            }
-	            setTitleChanged(true);
+	            recordEdit(PatternJournal.Edit.marks(cellValue.getPixelList()));
 	        });
 	        return property;
 	    });
@@ -252,20 +269,110 @@ public class OverviewController extends Controller {
 	    });
 	}
 
+	private void setupColorLimitHandler() {
+	    // A drag passes through every value, so the limit is only applied once the thumb is released.
+	    colorLimit.valueChangingProperty().addListener((observable, wasChanging, isChanging) -> {
+	        if (!isChanging) {
+	            requestColorLimit();
+	        }
+	    });
+	    colorLimit.valueProperty().addListener((observable, oldValue, newValue) -> {
+	        if (!colorLimit.isValueChanging()) {
+	            requestColorLimit();
+	        }
+	    });
+	}
+
+	private void requestColorLimit() {
+	    if (isColorLimitUpdating) {
+	        return;
+	    }
+	    final int limit = (int) Math.round(colorLimit.getValue());
+	    final StitchImage stitchImage = canvasController.getImage();
+	    if (limit == stitchImage.getPixelLists().size()) {
+	        return;
+	    }
+	    if (stitchImage.isColorHierarchyBuilt()) {
+	        applyColorLimit(limit, stitchImage.getBuiltColorHierarchy() != null);
+	        return;
+	    }
+	    // Building the hierarchy takes long for large patterns, so it runs behind the progress window.
+	    colorLimit.setDisable(true);
+	    main.runWithProgress(Resources.getString("conversion_building_color_hierarchy"), stitchImage::getColorHierarchy)
+	            .whenComplete((result, throwable) -> Platform.runLater(() -> {
+	                // Another pattern may have been loaded meanwhile, which set the slider up for itself.
+	                if (canvasController.getImage() != stitchImage) {
+	                    return;
+	                }
+	                if (throwable != null) {
+	                    LogPrinter.print(throwable);
+	                    LogPrinter.error(Resources.getString("error_has_occurred"));
+	                } else {
+	                    // A hierarchy first built now isn't in the saved file, so the file can't replay the edit.
+	                    applyColorLimit(limit, false);
+	                }
+	                setColorLimitRange(stitchImage);
+	            }));
+	}
+
+	private void applyColorLimit(final int limit, final boolean isHierarchySaved) {
+	    final StitchImage stitchImage = canvasController.getImage();
+	    stitchImage.setColorLimit(limit);
+	    setColorTableItems(stitchImage);
+	    invalidate();
+	    if (isHierarchySaved) {
+	        recordEdit(PatternJournal.Edit.colorLimit(limit));
+	    } else {
+	        setTitleChanged(true);
+	    }
+	}
+
+	/**
+	 * Records an edit of the pattern. An edit of a pattern that is saved as it
+	 * is is appended to the journal of its file, which keeps it saved, and any
+	 * other edit marks the pattern as changed.
+	 */
+	private void recordEdit(final PatternJournal.Edit edit) {
+	    final StitchImage stitchImage = canvasController.getImage();
+	    if (!Preferences.getBoolean("journalEdits", true) || stitchImage.isChanged() || !dmcFile.isFile()
+	            || !".dmc".equals(getExtension(dmcFile))) {
+	        setTitleChanged(true);
+	        return;
+	    }
+	    patternSaver.journal(dmcFile, stitchImage, edit, Preferences.getBoolean("deflateSavedFile", true))
+	            .whenComplete((result, throwable) -> {
+	                if (throwable != null) {
+	                    // Marked at once, so an exit waiting on the saver still asks to save the edit.
+	                    stitchImage.setChanged(true);
+	                    Platform.runLater(() -> {
+	                        LogPrinter.print(throwable);
+	                        setTitleChanged(true);
+	                    });
+	                }
+	            });
+	}
+
 	private void setupCanvasMouseHandlers() {
 	    canvas.addEventHandler(MouseEvent.MOUSE_RELEASED, event -> {
+	        final Point2D point = toPatternPoint(event);
 	        if (event.getButton().equals(MouseButton.PRIMARY)) {
-	            highlightPixel(event.getX(), event.getY());
+	            highlightPixel(point.getX(), point.getY());
 	        } else if (event.getButton().equals(MouseButton.SECONDARY)) {
-	            getClickedColor(event.getX(), event.getY());
+	            getClickedColor(point.getX(), point.getY());
 	        }
 	    });
 	}
 
+	// The canvas only covers the viewport, so its position is added to get the point in the whole pattern.
+	private Point2D toPatternPoint(final MouseEvent event) {
+	    return canvas.localToParent(event.getX(), event.getY());
+	}
+
 	private void setupDistanceCircleDrawing() {
 	    if (Preferences.getBoolean("showDistanceCircle", false)) {
 	        EventHandler<MouseEvent> drawHandler = event -> {
-	            canvasController.startDrawDistanceCircle(event.getX(), event.getY());
+	            final Point2D point = toPatternPoint(event);
+	            canvasController.startDrawDistanceCircle(point.getX(), point.getY());
 	            invalidate();
 	        };
 	        canvas.addEventHandler(MouseEvent.MOUSE_PRESSED, drawHandler);
@@ -277,6 +384,15 @@ public class OverviewController extends Controller {
 	    }
 	}
 
+
+	private void setupCanvasViewport() {
+	    // The viewport bounds change with the scroll bars as well as with the size of the scroll pane.
+	    canvasScrollPane.viewportBoundsProperty().addListener((observable, oldValue, newValue) -> {
+	        if (canvasController != null) {
+	            invalidate();
+	        }
+	    });
+	}
 	
 	public boolean setZoom(String scale) {
 	    double ratioByWidth = calculateWidthRatio();
@@ -334,8 +450,15 @@ public class OverviewController extends Controller {
 	}
 	
 	public void setImage(final StitchImage stitchImage) {
-	    canvasController = new CanvasController(stitchImage, canvas);
+	    canvasController = new CanvasController(stitchImage, canvas, canvasScrollPane);
+	    setColorTableItems(stitchImage);
+	    setColorLimitRange(stitchImage);
+	    setZoom(Preferences.getValue("scale", "MATCH_WIDTH"));
 
+	    enableCanvasInteraction();
+	}
+
+	private void setColorTableItems(final StitchImage stitchImage) {
 	    ObservableList<StitchList> stitchListArrayList = FXCollections.observableArrayList(
 	        stitchList -> new Observable[]{stitchList.highlightProperty(), stitchList.completeProperty()}
 	    );
@@ -349,9 +472,23 @@ public class OverviewController extends Controller {
 	    });
 
 	    colorTable.setItems(stitchListArrayList);
-	    setZoom(Preferences.getValue("scale", "MATCH_WIDTH"));
+	}
 
-	    enableCanvasInteraction();
+	private void setColorLimitRange(final StitchImage stitchImage) {
+	    // Files saved without a hierarchy can't change their color limit.
+	    final boolean hasHierarchy = stitchImage.hasColorHierarchy();
+	    colorLimit.setDisable(!hasHierarchy);
+	    colorLimitLabel.setDisable(!hasHierarchy);
+	    if (!hasHierarchy) {
+	        return;
+	    }
+	    // A hierarchy that isn't built yet starts from the colors of the converted pattern, down to one.
+	    final ColorHierarchy hierarchy = stitchImage.getBuiltColorHierarchy();
+	    isColorLimitUpdating = true;
+	    colorLimit.setMin(hierarchy != null ? hierarchy.getMinimumColorCount() : 1);
+	    colorLimit.setMax(hierarchy != null ? hierarchy.getColorCount() : stitchImage.getPixelLists().size());
+	    colorLimit.setValue(stitchImage.getPixelLists().size());
+	    isColorLimitUpdating = false;
 	}
 	
 	private void enableCanvasInteraction() {
@@ -388,10 +525,10 @@ public class OverviewController extends Controller {
 	private void getClickedColor(double originalX, double originalY) {
 	    int x = (int) ((originalX - canvasController.getMargin()) / canvasController.getScale());
 	    int y = (int) ((originalY - canvasController.getMargin()) / canvasController.getScale());
-	    Pixel pixel = new Pixel(x, y, null);
+	    PixelList pixelList = canvasController.getImage().getPixelList(x, y);
 
 	    colorTable.getItems().stream()
-	        .filter(stitchList -> stitchList.getPixelList().hasPixel(pixel))
+	        .filter(stitchList -> stitchList.getPixelList() == pixelList)
 	        .findFirst()
 	        .ifPresent(stitchList -> Platform.runLater(() -> {
 	            colorTable.requestFocus();
@@ -425,20 +562,15 @@ public class OverviewController extends Controller {
 	private void highlightPixel(int x, int y) {
 	    if (x == -1 || y == -1) return;
 
-	    Pixel pixel = new Pixel(x, y, new StitchColor(0, null));
+	    if (canvasController.getImage().getPixelList(x, y) == null) return;
 
-	    colorTable.getItems().stream()
-	        .filter(stitchList -> stitchList.getPixelList().hasPixel(pixel))
-	        .findFirst()
-	        .ifPresent(stitchList -> {
-	            this.x = (this.x == x && this.y == y) ? -1 : x;
-	            this.y = (this.x == x && this.y == y) ? -1 : y;
+	    this.x = (this.x == x && this.y == y) ? -1 : x;
+	    this.y = (this.x == x && this.y == y) ? -1 : y;
 
-	            Platform.runLater(() -> {
-	                canvasController.setHighlightPixel(this.x, this.y);
-	                canvasController.invalidate();
-	            });
-	        });
+	    Platform.runLater(() -> {
+	        canvasController.setHighlightPixel(this.x, this.y);
+	        canvasController.invalidate();
+	    });
 	}
 
 	private void closeWindowEvent(WindowEvent event) {
@@ -450,6 +582,7 @@ public class OverviewController extends Controller {
 
 	    if (!confirmExit()) {
 	        event.consume();
+	        return;
 	    }
 	    System.exit(0);
 	}
@@ -539,7 +672,7 @@ public class OverviewController extends Controller {
 
 	    dmcFile = new File(file.getParent(), extractFileNameWithoutExtension(file) + ".dmc");
 	    overviewStage.setTitle(dmcFile.getName() + "(*)");
-	    main.load(new GraphicsEngine.Builder(csvFile, file), GraphicsEngine.Mode.NEW_FILE);
+	    main.load(builder, GraphicsEngine.Mode.NEW_FILE);
 
 	    name = extractFileNameWithoutExtension(dmcFile);
 	}
@@ -562,9 +695,18 @@ public class OverviewController extends Controller {
 	@FXML
 	public boolean saveMenu() {
 	    if (!save.isDisable()) {
+	        final File file = dmcFile;
 	        setTitleChanged(false);
-	        Resources.writeObject(dmcFile, canvasController.getImage());
-	        Preferences.setValue("autoLoadFile", dmcFile.getPath());
+	        lastSave = patternSaver.save(file, canvasController.getImage(), Preferences.getBoolean("deflateSavedFile", true))
+	                .whenComplete((result, throwable) -> Platform.runLater(() -> {
+	                    if (throwable == null) {
+	                        Preferences.setValue("autoLoadFile", file.getPath());
+	                    } else {
+	                        LogPrinter.print(throwable);
+	                        LogPrinter.error(Resources.getString("save_failed", file.getName()));
+	                        setTitleChanged(true);
+	                    }
+	                }));
 	        return true;
 	    }
 	    return false;
@@ -591,14 +733,16 @@ public class OverviewController extends Controller {
 	}
 
 	private boolean confirmExit() {
+	    // Edits only queued for the journal are lost if the application exits before they are written.
+	    patternSaver.flush().join();
 	    if (canvasController != null && canvasController.getImage().isChanged()) {
 	        initializeConfirmExitAlert();
 	        Optional<ButtonType> result = confirmExitAlert.showAndWait();
 
 	        if (result.isPresent()) {
 	            if (result.get() == saveButton) {
-	                saveMenu();
-	                return true;
+	                // The window stays open if the pattern couldn't be saved.
+	                return saveMenu() && lastSave.handle((ignored, throwable) -> throwable == null).join();
 	            } else if (result.get() == notSaveButton) {
 	                return true;
 	            }
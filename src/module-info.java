@@ -17,4 +17,5 @@ module CrossStitchConverter {
 	requires transitive javafx.swing;
 	requires transitive json.simple;
 	requires com.opencsv;
+	requires static jdk.incubator.vector;
 }
\ No newline at end of file
@@ -0,0 +1,129 @@
+package com.stitch.converter;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.stitch.converter.model.StitchColor;
+import com.stitch.converter.model.StitchImage;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Checks that the converters match pixels without allocating per pixel.
+ * <p>
+ * The plain converter reports its progress after every tile and the dithered
+ * converter after every row, from the thread that converted it, so the bytes
+ * the thread allocated between two reports are the cost of converting one
+ * tile or row.
+ *
+ * @author Reinvert
+ *
+ */
+public class ColorConverterAllocationTest {
+	private static final int WIDTH = 512, HEIGHT = 512, TILE_SIZE = 64;
+	// The per-pixel objects of the old loop took over a hundred bytes per pixel.
+	private static final double MAXIMUM_BYTES_PER_PIXEL = 1d;
+
+	@Test
+	public void convertsTilesWithoutAllocatingPerPixel() {
+		final ThreadMXBean threads = threads();
+		final TileAllocation allocation = new TileAllocation(threads, TILE_SIZE * TILE_SIZE);
+		createBuilder().setThreadCount(1).setTileSize(TILE_SIZE).setProgressListener(allocation).build().run();
+		assertLittleAllocated(allocation);
+	}
+
+	@Test
+	public void dithersRowsWithoutAllocatingPerPixel() {
+		final ThreadMXBean threads = threads();
+		// Euclidean runs on the distance kernel; the others search a tree or the Lab palette.
+		for (final ColorMetric metric : ColorMetric.Standard.values()) {
+			// The vector kernel allocates until it is compiled, so the first run only warms it up.
+			dither(metric, new TileAllocation(threads, WIDTH));
+			final TileAllocation allocation = new TileAllocation(threads, WIDTH);
+			dither(metric, allocation);
+			assertLittleAllocated(allocation);
+		}
+	}
+
+	private static void dither(final ColorMetric metric, final TileAllocation allocation) {
+		new DitheredColorConverter(createBuilder().setThreadCount(1).setConvertMode(GraphicsEngine.FLOYD)
+				.setColorMetric(metric).setProgressListener(allocation)).run();
+	}
+
+	private static ThreadMXBean threads() {
+		final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		return threads;
+	}
+
+	private static ColorConverter.Builder createBuilder() {
+		final Random random = new Random(7);
+		final List<StitchColor> palette = new ArrayList<>();
+		for (int index = 0; index < 64; index++) {
+			palette.add(new StitchColor(random.nextInt(256), random.nextInt(256), random.nextInt(256),
+					Integer.toString(index)));
+		}
+		final BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				image.setRGB(x, y, random.nextInt(1 << 12) * 4099);
+			}
+		}
+		final StitchImage stitchImage = new StitchImage();
+		stitchImage.setSize(WIDTH, HEIGHT);
+		return new ColorConverter.Builder(image, stitchImage, palette);
+	}
+
+	private static void assertLittleAllocated(final TileAllocation allocation) {
+		assertTrue("nothing was measured", allocation.pixels > 0);
+		final double bytesPerPixel = (double) allocation.bytes / allocation.pixels;
+		assertTrue("converting allocated " + bytesPerPixel + " bytes per pixel",
+				bytesPerPixel < MAXIMUM_BYTES_PER_PIXEL);
+	}
+
+	/**
+	 * Sums the bytes allocated between consecutive tile or row reports of the
+	 * same thread.
+	 */
+	private static final class TileAllocation implements ProgressListener {
+		private final ThreadMXBean threads;
+		private final int pixelsPerReport;
+		private long previousThread = -1, previousBytes;
+		private long bytes, pixels;
+
+		private TileAllocation(final ThreadMXBean threads, final int pixelsPerReport) {
+			this.threads = threads;
+			this.pixelsPerReport = pixelsPerReport;
+		}
+
+		@Override
+		public synchronized void onProgress(final double progress, final String message) {
+			// The report before the tiles comes from matching the distinct colors.
+			if (progress == 0d) {
+				return;
+			}
+			final long thread = Thread.currentThread().getId();
+			final long allocated = threads.getThreadAllocatedBytes(thread);
+			if (thread == previousThread) {
+				bytes += allocated - previousBytes;
+				pixels += pixelsPerReport;
+			}
+			previousThread = thread;
+			// Read again, so the bytes of this report aren't charged to the next tile.
+			previousBytes = threads.getThreadAllocatedBytes(thread);
+		}
+
+		@Override
+		public void finished() {
+		}
+	}
+}